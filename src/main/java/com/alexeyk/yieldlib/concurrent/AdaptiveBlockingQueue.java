@@ -0,0 +1,335 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Blocking queue with capacity what is changed between min and max limit by observed producer/consumer waiting.
+ *
+ * <ul>
+ * <li>Grow twice: producer is blocked on full queue while consumer is active - it was waiting on empty queue short time ago.
+ * Generator is bursty, more space let it continue burst and consumer will not wait.</li>
+ * <li>Decrease by one: consumer several times take from full queue without waiting (prefetched items are not need).</li>
+ * <li>Decrease twice and release memory: queue was idle (no take) over IDLE_NANOS.</li>
+ * </ul>
+ * Used by YieldIteratorQueueImpl for PrefetchPolicy.adaptive().
+ *
+ * Queue can be over capacity after shrink, it is normal: put() will wait till size is less that capacity.
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public class AdaptiveBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    /** Count of same observation for change capacity. */
+    protected static final int ADAPT_STEPS = 8;
+    /** Producer and consumer waiting in this time window is burst. */
+    protected static final long BURST_WINDOW_NANOS = 10_000_000L;
+    /** Queue without take over this time is idle. */
+    protected static final long IDLE_NANOS = 100_000_000L;
+
+    protected final int minCapacity, maxCapacity;
+    protected ArrayDeque<E> items; // replaced by smaller one when idle
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final Condition notEmpty = lock.newCondition();
+    protected final Condition notFull = lock.newCondition();
+    protected volatile int capacity;
+    // guarded by lock:
+    protected int burstWaits, fullTakes; // observation counters
+    protected long lastEmptyWait, lastFullWait, lastTake; // System.nanoTime()
+    protected int highWater; // max size after last trim of items
+
+    public AdaptiveBlockingQueue(int minCapacity, int maxCapacity) {
+        if (minCapacity<1 || maxCapacity<minCapacity) throw new IllegalArgumentException("Wrong capacity bounds: min="+minCapacity+" max="+maxCapacity);
+        this.minCapacity = minCapacity;
+        this.maxCapacity = maxCapacity;
+        this.capacity = minCapacity;
+        this.items = new ArrayDeque<>(minCapacity);
+        this.lastTake = this.lastEmptyWait = this.lastFullWait = System.nanoTime()-IDLE_NANOS;
+    }
+
+    /**
+     * @return current capacity limit
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMinCapacity() {
+        return minCapacity;
+    }
+
+    public int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    /** Call under lock. */
+    private void grow() {
+        burstWaits = 0;
+        if (capacity<maxCapacity) {
+            capacity = (int)Math.min((long)capacity*2, maxCapacity);
+            notFull.signalAll();
+        }
+    }
+
+    /** Call under lock when producer should wait full queue. */
+    protected void observeFull() {
+        long now = System.nanoTime();
+        lastFullWait = now;
+        if (now-lastEmptyWait<BURST_WINDOW_NANOS && ++burstWaits>=ADAPT_STEPS) grow();
+    }
+
+    /**
+     * Call under lock before take item.
+     * @param countFull false when item will be not taken now (check only)
+     */
+    protected void observeTake(boolean countFull) {
+        long now = System.nanoTime();
+        if (now-lastTake>IDLE_NANOS && capacity>minCapacity) { // idle, release memory
+            capacity = Math.max(minCapacity, capacity/2);
+            if (highWater>capacity) {
+                items = new ArrayDeque<>(items);
+                highWater = items.size();
+            }
+            fullTakes = 0;
+            burstWaits = 0;
+        }
+        if (countFull) lastTake = now;
+        int size = items.size();
+        if (size==0) {
+            fullTakes = 0;
+            lastEmptyWait = now;
+            if (now-lastFullWait<BURST_WINDOW_NANOS && ++burstWaits>=ADAPT_STEPS) grow();
+        } else if (countFull && size>=capacity) {
+            if (++fullTakes>=ADAPT_STEPS && capacity>minCapacity) {
+                capacity--;
+                fullTakes = 0;
+            }
+        }
+    }
+
+    /** Call under lock. */
+    private void enqueue(E e) {
+        items.add(e);
+        if (items.size()>highWater) highWater = items.size();
+        notEmpty.signal();
+    }
+
+    /** Call under lock, items should not be empty. */
+    private E dequeue() {
+        E e = items.poll();
+        notFull.signal();
+        return e;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        Objects.requireNonNull(e);
+        lock.lock();
+        try {
+            if (items.size()>=capacity) return false;
+            enqueue(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        Objects.requireNonNull(e);
+        lock.lockInterruptibly();
+        try {
+            if (items.size()>=capacity) {
+                observeFull();
+                while (items.size()>=capacity) notFull.await();
+            }
+            enqueue(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(e);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            if (items.size()>=capacity) observeFull();
+            while (items.size()>=capacity) {
+                if (nanos<=0L) return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            observeTake(true);
+            while (items.isEmpty()) notEmpty.await();
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            observeTake(true);
+            while (items.isEmpty()) {
+                if (nanos<=0L) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait till queue has any item, without take it.
+     * It for hasNext() what should not remove item from queue.
+     * @param timeoutNanos negative for wait without timeout
+     * @return false on timeout
+     */
+    public boolean awaitNotEmpty(long timeoutNanos) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            observeTake(false);
+            while (items.isEmpty()) {
+                if (timeoutNanos<0) notEmpty.await();
+                else if (timeoutNanos==0) return false;
+                else timeoutNanos = Math.max(0L, notEmpty.awaitNanos(timeoutNanos));
+            }
+            notEmpty.signal(); // item is not taken: pass wakeup to other waiter, for example take() of other consumer
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return items.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            return items.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return Math.max(0, capacity-items.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            items.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove one item, iterator() is snapshot and can not remove.
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o==null) return false;
+        lock.lock();
+        try {
+            if (!items.remove(o)) return false;
+            notFull.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c==this) throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int n = 0;
+            while (n<maxElements && !items.isEmpty()) {
+                c.add(items.poll());
+                n++;
+            }
+            if (n>0) notFull.signalAll();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return iterator over snapshot of queue
+     */
+    @Override
+    public Iterator<E> iterator() {
+        lock.lock();
+        try {
+            return new ArrayList<>(items).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+
+/**
+ * Producer side buffer for chunked() and windowed(): generator thread collect items and hand full chunk by one exchange.
+ * Not thread safe, guarded by owner iterator.
+ *
+ * Tumbling chunk when step==size, hopping (items between windows are dropped) when step&gt;size, sliding window when step&lt;size.
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+final class ChunkBuffer {
+    /**
+     * Chunk what is handed to consumer. Own class, so generator can yield List as item.
+     */
+    static final class Chunk extends ArrayList<Object> {
+        private static final long serialVersionUID = 1L;
+        long bytes; // MemoryBudget size
+
+        Chunk(int capacity) {
+            super(capacity);
+        }
+
+        Chunk(Collection<Object> items) {
+            super(items);
+        }
+    }
+
+    final int size;
+    final int step;
+    final long maxWaitNanos; // -1 - without time limit
+    final boolean partial; // hand not full chunk by time and at end
+    private Chunk items;
+    private long firstNanos; // time of first item of current chunk
+    private int gap; // items to drop till next window, step>size
+
+    ChunkBuffer(int size, int step, long maxWaitNanos, boolean partial) {
+        if (size<1) throw new IllegalArgumentException("Chunk size should be positive: "+size);
+        if (step<1) throw new IllegalArgumentException("Window step should be positive: "+step);
+        this.size = size;
+        this.step = step;
+        this.maxWaitNanos = maxWaitNanos;
+        this.partial = partial;
+        this.items = new Chunk(size);
+    }
+
+    boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * @return full chunk for hand to consumer or null
+     */
+    Chunk add(Object item) {
+        if (gap>0) {
+            gap--;
+            return null;
+        }
+        if (items.isEmpty()) firstNanos = System.nanoTime();
+        items.add(item);
+        if (items.size()<size) return null;
+        Chunk full = items;
+        if (step>=size) {
+            items = new Chunk(size);
+            gap = step-size;
+        } else { // sliding: keep tail for next window
+            items = new Chunk(full.subList(step, size));
+        }
+        return full;
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return nanos till not full chunk should be handed by maxWait, 0 - now, maxWait when buffer is empty, -1 - never
+     */
+    long flushDelay(long now) {
+        if (maxWaitNanos<0 || !partial) return -1L;
+        if (items.isEmpty()) return maxWaitNanos;
+        return Math.max(0L, firstNanos+maxWaitNanos-now);
+    }
+
+    /**
+     * @return not full chunk (by time or at end of generator) or null
+     */
+    Chunk takePartial() {
+        if (!partial || items.isEmpty()) return null;
+        Chunk chunk = items;
+        items = new Chunk(size);
+        return chunk;
+    }
+
+    /**
+     * Return chunk what can not be handed (interrupted).
+     */
+    void restore(Chunk chunk) {
+        chunk.bytes = 0;
+        chunk.addAll(items);
+        items = chunk;
+    }
+}
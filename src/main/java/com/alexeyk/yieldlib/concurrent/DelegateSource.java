@@ -0,0 +1,119 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Source what generator hand to consumer by yieldFrom(): consumer read items direct from source,
+ * generator wait till source is drained (as python "yield from").
+ *
+ * Source is read only under lock of this object, so many consumers can read it.
+ * Nested generator (YieldIterator, YieldIteratorQueueImpl) is closed by cancel(), consumer wait it with own timeout.
+ * Exception of source mark it drained and is thrown to generator from awaitDrained(), consumer get it from generator.
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+final class DelegateSource {
+    static final Object DRAINED = new Object();
+    static final Object TIMED_OUT = new Object();
+    private static final Object NONE = new Object();
+
+    private final Iterator source;
+    private Object peeked = NONE; // guarded by this
+    private boolean drained; // guarded by this
+    private Throwable failure; // guarded by this, exception of source for generator
+
+    DelegateSource(Iterator source) {
+        this.source = source;
+    }
+
+    /**
+     * @return next item without take it, or DRAINED
+     */
+    Object peekItem() {
+        return peekItem(-1L);
+    }
+
+    /**
+     * @param timeoutNanos negative for wait without timeout. Only nested generator is waited with timeout.
+     * @return next item without take it, DRAINED or TIMED_OUT
+     */
+    synchronized Object peekItem(long timeoutNanos) {
+        if (peeked!=NONE) return peeked;
+        if (drained) return DRAINED;
+        try {
+            if (sourceHasNext(timeoutNanos)) {
+                peeked = source.next();
+                return peeked;
+            }
+        } catch (TimeoutException e) {
+            return TIMED_OUT;
+        } catch (RuntimeException | Error e) {
+            if (e.getCause() instanceof InterruptedException || Thread.currentThread().isInterrupted()) throw e; // consumer is interrupted, source is not failed
+            failure = e;
+        }
+        drained = true;
+        notifyAll();
+        return DRAINED;
+    }
+
+    private boolean sourceHasNext(long timeoutNanos) throws TimeoutException {
+        if (timeoutNanos<0) return source.hasNext();
+        if (source instanceof YieldIterator) return ((YieldIterator)source).hasNext(Duration.ofNanos(timeoutNanos));
+        if (source instanceof YieldIteratorQueueImpl) return ((YieldIteratorQueueImpl)source).hasNext(Duration.ofNanos(timeoutNanos));
+        if (source instanceof MappedRingIterator) return ((MappedRingIterator)source).hasNext(Duration.ofNanos(timeoutNanos));
+        return source.hasNext();
+    }
+
+    /**
+     * @return next item or DRAINED
+     */
+    Object takeItem() {
+        return takeItem(-1L);
+    }
+
+    /**
+     * @param timeoutNanos negative for wait without timeout
+     * @return next item, DRAINED or TIMED_OUT
+     */
+    synchronized Object takeItem(long timeoutNanos) {
+        Object item = peekItem(timeoutNanos);
+        if (item!=TIMED_OUT) peeked = NONE;
+        return item;
+    }
+
+    /**
+     * Generator: wait till consumer drain source.
+     * @throws RuntimeException or Error - exception of source, as python "yield from"
+     */
+    synchronized void awaitDrained() throws InterruptedException {
+        while (!drained) wait();
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure!=null) throw (RuntimeException) failure;
+    }
+
+    /**
+     * Stop delegation on close. Nested generator is closed before lock, so consumer what wait it is wake up.
+     */
+    void cancel() {
+        if (source instanceof Closeable) try {
+            ((Closeable)source).close();
+        } catch (IOException | RuntimeException e) {
+            System.err.println(getClass().getName() + ": Error on close nested generator "+e);
+        }
+        synchronized (this) {
+            drained = true;
+            peeked = NONE;
+            notifyAll();
+        }
+    }
+}
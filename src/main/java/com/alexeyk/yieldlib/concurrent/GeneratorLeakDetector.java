@@ -0,0 +1,125 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.PrintStream;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Find generators what are not closed and internal thread still alive (it wait consumer in yield()).
+ *
+ * Disabled by default. Enable by <code>setSampling(N)</code> or system property <code>yieldlib.leakDetection.sampling=N</code>:
+ * each N-th created generator remember creation stack trace. Not sampled generator cost one volatile read.
+ *
+ * Note: running generator thread reference own iterator, so GC can not collect iterator of not closed generator and
+ * no finalize() or Cleaner can close it. Detector only report not closed generators with alive thread, it does not stop them.
+ * Cleaner here only remove record of collected iterator (generator was finished without close()).
+ * Use <code>report()</code> for find who forget call close().
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public final class GeneratorLeakDetector {
+    private static volatile int sampling = Integer.getInteger("yieldlib.leakDetection.sampling", 0);
+    private static final Set<Record> RECORDS = ConcurrentHashMap.newKeySet();
+
+    private GeneratorLeakDetector() {
+    }
+
+    private static class CleanerHolder { // lazy create Cleaner thread
+        static final Cleaner CLEANER = Cleaner.create();
+    }
+
+    /**
+     * @param oneOfN track each N-th generator, 1 - track all, 0 - disable
+     */
+    public static void setSampling(int oneOfN) {
+        if (oneOfN<0) throw new IllegalArgumentException("Sampling should not be negative: "+oneOfN);
+        sampling = oneOfN;
+    }
+
+    public static int getSampling() {
+        return sampling;
+    }
+
+    /**
+     * Record of tracked generator. Should not reference iterator.
+     */
+    static final class Record implements Runnable {
+        final Throwable creation;
+        final WeakReference<Thread> thread;
+        final long createdNanos = System.nanoTime();
+        volatile boolean closed;
+
+        Record(Object iterator, Thread thread) {
+            this.creation = new Throwable("Generator "+iterator.getClass().getName()+" created at");
+            this.thread = new WeakReference<>(thread);
+        }
+
+        boolean isLeaked(long minAgeNanos) {
+            Thread t = thread.get();
+            return !closed && t!=null && t.isAlive() && System.nanoTime()-createdNanos>=minAgeNanos;
+        }
+
+        @Override
+        public void run() { // Cleaner action, iterator is collected: its thread is already finished
+            RECORDS.remove(this);
+        }
+    }
+
+    /**
+     * Call from generator constructor.
+     * @return record or null when generator is not sampled
+     */
+    static Object track(Object iterator, Thread thread) {
+        int n = sampling;
+        if (n==0 || (n>1 && ThreadLocalRandom.current().nextInt(n)!=0)) return null;
+        Record record = new Record(iterator, thread);
+        RECORDS.add(record);
+        CleanerHolder.CLEANER.register(iterator, record);
+        return record;
+    }
+
+    /**
+     * Call from generator close().
+     * @param record from track(), can be null
+     */
+    static void closed(Object record) {
+        if (record!=null) {
+            ((Record)record).closed = true;
+            RECORDS.remove(record);
+        }
+    }
+
+    /**
+     * @param minAge skip generators what are younger
+     * @return creation stack trace of not closed generators with alive thread
+     */
+    public static List<Throwable> report(Duration minAge) {
+        long minAgeNanos = minAge.toNanos();
+        List<Throwable> leaks = new ArrayList<>();
+        for (Record record:RECORDS) {
+            if (record.isLeaked(minAgeNanos)) leaks.add(record.creation);
+        }
+        return leaks;
+    }
+
+    /**
+     * Print report() to stream.
+     */
+    public static void printReport(Duration minAge, PrintStream out) {
+        List<Throwable> leaks = report(minAge);
+        out.println(GeneratorLeakDetector.class.getSimpleName()+": "+leaks.size()+" not closed generator(s) older "+minAge);
+        for (Throwable t:leaks) t.printStackTrace(out);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Owner of many generators, for example all generators of one request.
+ *
+ * Generators created with scope constructor (or added by add()) use scope thread factory and budget.
+ * First error of any generator is remembered and all other generators are cancelled: their consumers get CancellationException
+ * with first error as cause instead of end of items. Consumer should call throwIfFailed().
+ * Finished generators are removed from scope.
+ * <code>close()</code> close all generators and wait till their threads exit, but not more that join timeout.
+ *
+ * <pre>
+ * try (GeneratorScope scope = new GeneratorScope()) {
+ *     YieldIterator&lt;A&gt; a = new YieldIterator&lt;&gt;(scope) {...};
+ *     YieldIteratorQueueImpl&lt;B&gt; b = new YieldIteratorQueueImpl&lt;&gt;(scope) {...};
+ *     ... read a and b
+ *     scope.throwIfFailed();
+ * }
+ * </pre>
+ *
+ * Each generator still has own thread: generator block in yield() till consumer read, so shared thread pool can deadlock.
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public class GeneratorScope implements AutoCloseable {
+    private static final AtomicInteger SCOPE_NUMBER = new AtomicInteger();
+
+    protected final Duration joinTimeout;
+    protected final MemoryBudget budget; // can be null
+    protected final ThreadFactory threadFactory;
+    protected final List<Member> members = new ArrayList<>(); // guarded by members
+    private int pruneSize = 16; // guarded by members, size for remove members with finished thread
+    protected final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+    protected volatile boolean closed;
+
+    protected static final class Member {
+        final Closeable iterator;
+        final Thread thread;
+
+        Member(Closeable iterator, Thread thread) {
+            this.iterator = iterator;
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * Scope with join timeout 1 second, without budget.
+     */
+    public GeneratorScope() {
+        this(Duration.ofSeconds(1), null);
+    }
+
+    /**
+     * @param joinTimeout max time for wait all generator threads on close()
+     * @param budget shared budget for generators, can be null
+     */
+    public GeneratorScope(Duration joinTimeout, MemoryBudget budget) {
+        this(joinTimeout, budget, null);
+    }
+
+    /**
+     * @param joinTimeout max time for wait all generator threads on close()
+     * @param budget shared budget for generators, can be null
+     * @param threadFactory factory for generator threads, null for default daemon threads
+     */
+    public GeneratorScope(Duration joinTimeout, MemoryBudget budget, ThreadFactory threadFactory) {
+        Objects.requireNonNull(joinTimeout);
+        this.joinTimeout = joinTimeout;
+        this.budget = budget;
+        if (threadFactory==null) {
+            final String prefix = "generator-scope-"+SCOPE_NUMBER.incrementAndGet()+"-";
+            final AtomicInteger threadNumber = new AtomicInteger();
+            threadFactory = r -> GeneratorThreads.newThread(r, prefix+threadNumber.incrementAndGet());
+        }
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * @return shared budget, can be null
+     */
+    public MemoryBudget budget() {
+        return budget;
+    }
+
+    /**
+     * Create thread for generator.
+     */
+    public Thread newThread(Runnable body) {
+        if (closed) throw new IllegalStateException("Scope is closed");
+        return threadFactory.newThread(body);
+    }
+
+    /**
+     * Add generator what is created without scope.
+     * @return generator
+     */
+    public <I extends YieldIterator<?>> I add(I generator) {
+        generator.scope = this;
+        register(generator, generator.generator, generator.nextErr);
+        return generator;
+    }
+
+    /**
+     * Add generator what is created without scope.
+     * @return generator
+     */
+    public <I extends YieldIteratorQueueImpl<?>> I add(I generator) {
+        generator.scope = this;
+        register(generator, generator.generator, generator.nextErr);
+        return generator;
+    }
+
+    protected void register(Closeable generator, Thread thread, Throwable failure) {
+        boolean added = false;
+        synchronized (members) {
+            if (!closed) {
+                if (members.size()>=pruneSize) { // thread can finish before add, it does not remove own member
+                    members.removeIf(m -> m.thread.getState()==Thread.State.TERMINATED);
+                    pruneSize = Math.max(16, members.size()*2);
+                }
+                members.add(new Member(generator, thread));
+                added = true;
+            }
+        }
+        if (!added) { // scope closed
+            closeQuietly(generator);
+            throw new IllegalStateException("Scope is closed");
+        }
+        if (failure!=null) failed(generator, failure); // generator failed before add, keep its error
+    }
+
+    /**
+     * Called by generator thread on error. First error cancel all other generators,
+     * consumer of failed generator still take its items and error.
+     */
+    protected void failed(Closeable source, Throwable e) {
+        if (!firstFailure.compareAndSet(null, e)) return;
+        for (Member m:snapshot()) if (m.iterator!=source) cancelQuietly(m.iterator, e);
+    }
+
+    /**
+     * Called by generator thread on exit: remove generator from scope.
+     */
+    protected void finished(Closeable source) {
+        synchronized (members) {
+            for (int i=members.size()-1;i>=0;i--) {
+                if (members.get(i).iterator==source) {
+                    members.remove(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return first error of generators or null
+     */
+    public Throwable getFailure() {
+        return firstFailure.get();
+    }
+
+    /**
+     * Throw first error of any generator.
+     */
+    public void throwIfFailed() {
+        Throwable e = firstFailure.get();
+        if (e==null) return;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        throw new RuntimeException("Generator stop with error", e);
+    }
+
+    /**
+     * Close all generators, does not wait.
+     */
+    public void cancelAll() {
+        for (Member m:snapshot()) closeQuietly(m.iterator);
+    }
+
+    private List<Member> snapshot() {
+        synchronized (members) {
+            return new ArrayList<>(members);
+        }
+    }
+
+    /**
+     * Close generator what is cancelled by failure of other one: its consumer get CancellationException, not end of items.
+     */
+    private static void cancelQuietly(Closeable c, Throwable failure) {
+        CancellationException cause = new CancellationException("Generator is cancelled by failure of other generator in scope");
+        cause.initCause(failure);
+        if (c instanceof YieldIterator) ((YieldIterator)c).cancelCause = cause;
+        else if (c instanceof YieldIteratorQueueImpl) ((YieldIteratorQueueImpl)c).cancelCause = cause;
+        closeQuietly(c);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException | RuntimeException e) {
+            System.err.println(GeneratorScope.class.getName() + ": Error on close generator "+e);
+        }
+    }
+
+    /**
+     * Count of generator threads what are still alive.
+     */
+    public int aliveCount() {
+        int alive = 0;
+        for (Member m:snapshot()) if (m.thread.isAlive()) alive++;
+        return alive;
+    }
+
+    /**
+     * Close all generators and wait their threads not more that join timeout.
+     * Does not throw generator error, use throwIfFailed().
+     */
+    @Override
+    public void close() {
+        closed = true;
+        List<Member> all = snapshot();
+        for (Member m:all) closeQuietly(m.iterator);
+        long end = System.nanoTime()+joinTimeout.toNanos();
+        int alive = 0;
+        boolean interrupted = false;
+        for (Member m:all) {
+            long left = end-System.nanoTime();
+            if (!interrupted && left>0 && m.thread.isAlive()) try {
+                m.thread.join(Math.max(1L, left/1_000_000L));
+            } catch (InterruptedException ie) {
+                interrupted = true; // do not wait more
+            }
+            if (m.thread.isAlive()) alive++;
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (alive>0) System.err.println(getClass().getName() + ": "+alive+" generator thread(s) not finished in "+joinTimeout);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Thread configuration of generators, for many (100k) long-lived generators with low footprint.
+ *
+ * Each started generator has own platform thread. Thread stack is not Java heap, but by default it is 512 KB - 1 MB
+ * of reserved memory and OS limit of threads. Generator with simple loop need small stack, set it by
+ * <code>setStackSize(bytes)</code> or system property <code>yieldlib.stackSize=bytes</code> (0 - JVM default, -Xss).
+ * JVM can round or ignore stack size, see Thread(ThreadGroup, Runnable, String, long).
+ *
+ * Other footprint advices: use StartPolicy.LAZY (not read generator has no thread and no handoff buffers),
+ * close() generator after use (there are no finalizer, see GeneratorLeakDetector).
+ * Retained heap per instance is measured in GeneratorThreadsTest.
+ *
+ * Time to first element: EAGER generator create and start thread in constructor, it is most of startup latency.
+ * StartPolicy.PRESTARTED take spare thread what is already started and parked, and give it generator body.
+ * Pool keep <code>setWarmThreads(n)</code> spare threads (system property <code>yieldlib.warmThreads</code>, default 2),
+ * refill thread start new spare thread in background 1 ms after take, when taken thread already run generator. Empty pool create spare thread on caller thread, as EAGER.
+ * Call setWarmThreads() on application start, so first generator is also fast.
+ * Startup latency percentiles are measured in GeneratorThreadsTest.
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public final class GeneratorThreads {
+    private static volatile long stackSize = Long.getLong("yieldlib.stackSize", 0L);
+    private static volatile int warmThreads = Integer.getInteger("yieldlib.warmThreads", 2);
+    private static final ConcurrentLinkedQueue<SpareThread> spares = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger spareCount = new AtomicInteger(); // size of spares, size() of queue is O(n)
+    private static final AtomicInteger spareNumber = new AtomicInteger();
+    private static volatile Thread refiller; // created on first use
+    private static final long REFILL_DELAY_NANOS = 1_000_000L;
+
+    private GeneratorThreads() {
+    }
+
+    /**
+     * @param bytes stack size of new generator threads, 0 - JVM default
+     */
+    public static void setStackSize(long bytes) {
+        if (bytes<0) throw new IllegalArgumentException("Stack size should not be negative: "+bytes);
+        stackSize = bytes;
+    }
+
+    public static long getStackSize() {
+        return stackSize;
+    }
+
+    /**
+     * Thread for generator with default stack size.
+     */
+    static Thread newThread(Runnable body, String name) {
+        return new Thread(null, body, name, stackSize);
+    }
+
+    /**
+     * Thread for generator by start policy: pre-started spare thread for PRESTARTED, else new thread.
+     * Start it by start(Thread).
+     */
+    static Thread newThread(Runnable body, String name, StartPolicy startPolicy) {
+        if (startPolicy!=StartPolicy.PRESTARTED) return newThread(body, name);
+        SpareThread t = spares.poll();
+        if (t!=null) spareCount.decrementAndGet();
+        else t = newSpare(); // pool is empty
+        t.assign(body, name);
+        refill();
+        return t;
+    }
+
+    /**
+     * Start generator thread: run body on spare thread or start new thread.
+     */
+    static void start(Thread generator) {
+        if (generator instanceof SpareThread) ((SpareThread)generator).launch();
+        else generator.start();
+    }
+
+    /**
+     * @param count spare threads for StartPolicy.PRESTARTED, 0 - no pool. Pool is filled in background.
+     */
+    public static void setWarmThreads(int count) {
+        if (count<0) throw new IllegalArgumentException("Warm threads count should not be negative: "+count);
+        warmThreads = count;
+        SpareThread t;
+        while (spareCount.get()>count && (t = spares.poll())!=null) { // release over limit
+            spareCount.decrementAndGet();
+            t.interrupt();
+        }
+        refill();
+    }
+
+    public static int getWarmThreads() {
+        return warmThreads;
+    }
+
+    /**
+     * @return count of started spare threads what wait generator
+     */
+    public static int spareThreads() {
+        return spareCount.get();
+    }
+
+    private static SpareThread newSpare() {
+        SpareThread t = new SpareThread(stackSize);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Wake up refill thread when pool is not full.
+     */
+    private static void refill() {
+        if (spareCount.get()>=warmThreads) return;
+        Thread r = refiller;
+        if (r==null) synchronized (GeneratorThreads.class) {
+            r = refiller;
+            if (r==null) {
+                r = new Thread(GeneratorThreads::refillLoop, "yieldlib-spare-refill");
+                r.setDaemon(true);
+                r.start();
+                refiller = r;
+            }
+        }
+        LockSupport.unpark(r);
+    }
+
+    private static void refillLoop() {
+        while (true) {
+            LockSupport.parkNanos(REFILL_DELAY_NANOS); // new thread do not take CPU from taken spare
+            while (spareCount.get()<warmThreads) {
+                spares.add(newSpare());
+                spareCount.incrementAndGet();
+            }
+            LockSupport.park(); // unpark before park is not lost
+        }
+    }
+
+    /**
+     * Started daemon thread what wait generator body. Interrupt before launch() stop it (generator closed before start).
+     */
+    private static final class SpareThread extends Thread {
+        private Runnable body;
+        private volatile boolean launched;
+
+        SpareThread(long stackSize) {
+            super(null, null, "yieldlib-spare-"+spareNumber.incrementAndGet(), stackSize);
+            setDaemon(true);
+        }
+
+        void assign(Runnable body, String name) {
+            this.body = body; // published by volatile launched
+            setName(name);
+        }
+
+        void launch() {
+            launched = true;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            while (!launched) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    if (!launched) return;
+                    interrupt(); // close() after launch, body see it
+                    break;
+                }
+            }
+            body.run();
+        }
+    }
+
+    /**
+     * Thread factory for GeneratorScope with own stack size.
+     * @param prefix thread name prefix
+     * @param bytes stack size, 0 - JVM default
+     */
+    public static ThreadFactory withStackSize(String prefix, long bytes) {
+        if (bytes<0) throw new IllegalArgumentException("Stack size should not be negative: "+bytes);
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return r -> new Thread(null, r, prefix+threadNumber.incrementAndGet(), bytes);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Generator of records from file. File is mapped by FileChannel.map() window by window, records are split in mapped memory
+ * and yielded as read-only ByteBuffer slices, without copy to String or byte[].
+ *
+ * Formats:
+ * <ul>
+ * <li>LINES: record end by '\n', "\r\n" is also accepted. Last line can be without '\n'.</li>
+ * <li>LENGTH_PREFIXED: 4 byte big-endian length, then record bytes.</li>
+ * <li>FIXED_WIDTH: records of same size.</li>
+ * </ul>
+ * File over 2 GB is mapped by windows (default 64 MB), record should not be bigger that window.
+ * Generator thread touch pages ahead of current record (read-ahead), so disk read overlap with consumer processing.
+ *
+ * Slice keep reference to own window: window is unmapped by GC when all its slices are collected.
+ * Do not change file while it is read. For text use asCharSequence(record) or StandardCharsets.UTF_8.decode(record).
+ *
+ * Error of file read is thrown to consumer as UncheckedIOException.
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public class MappedRecordIterator extends YieldIteratorQueueImpl<ByteBuffer> {
+    /**
+     * How records are split.
+     */
+    public enum Format {
+        LINES,
+        LENGTH_PREFIXED,
+        FIXED_WIDTH
+    }
+
+    public static final int DEFAULT_WINDOW = 64*1024*1024;
+    /** Generator touch pages so far ahead of current record. */
+    protected static final int READ_AHEAD = 1024*1024;
+    protected static final int PAGE = 4096;
+
+    protected final Path file;
+    protected final Format format;
+    protected final int recordSize;
+    protected final int windowSize;
+    // generator thread only:
+    protected int touched; // next not touched position in window
+    protected int pageSum; // result of page touch
+
+    public MappedRecordIterator(Path file, Format format) {
+        this(file, format, 0, StartPolicy.EAGER, PrefetchPolicy.fixed(64), DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param recordSize record size for FIXED_WIDTH, ignored for other formats
+     */
+    public MappedRecordIterator(Path file, Format format, int recordSize) {
+        this(file, format, recordSize, StartPolicy.EAGER, PrefetchPolicy.fixed(64), DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param recordSize record size for FIXED_WIDTH, ignored for other formats
+     * @param windowSize bytes mapped at once, max record size
+     */
+    public MappedRecordIterator(Path file, Format format, int recordSize, StartPolicy startPolicy, PrefetchPolicy prefetchPolicy, int windowSize) {
+        super(checkedQueue(file, format, recordSize, prefetchPolicy, windowSize), startPolicy, prefetchPolicy.isLockstep(), null, null, null, false); // start after fields are set
+        this.file = file;
+        this.format = format;
+        this.recordSize = recordSize;
+        this.windowSize = windowSize;
+        if (startPolicy.isEager()) launch();
+    }
+
+    /**
+     * Check arguments before super constructor take generator thread (spare thread for StartPolicy.PRESTARTED).
+     * @return queue for prefetch policy
+     */
+    private static BlockingQueue checkedQueue(Path file, Format format, int recordSize, PrefetchPolicy prefetchPolicy, int windowSize) {
+        Objects.requireNonNull(file);
+        Objects.requireNonNull(format);
+        if (format==Format.FIXED_WIDTH && recordSize<1) throw new IllegalArgumentException("Record size should be positive: "+recordSize);
+        if (windowSize<Math.max(recordSize, 4)) throw new IllegalArgumentException("Window size is less that record: "+windowSize);
+        return queueFor(prefetchPolicy);
+    }
+
+    @Override
+    protected void generator() throws InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long offset = 0; // file position of next record
+            while (offset<size) {
+                int length = (int)Math.min(windowSize, size-offset);
+                boolean last = offset+length==size;
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                touched = 0;
+                int used = split(window, offset, last);
+                if (used==0) throw new IOException("Record is bigger that window "+windowSize+" at offset "+offset+" of "+file);
+                offset += used;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Yield all full records of window.
+     * @param offset window position in file
+     * @param last window is end of file
+     * @return bytes of yielded records
+     */
+    protected int split(MappedByteBuffer window, long offset, boolean last) throws IOException, InterruptedException {
+        int limit = window.limit();
+        int pos = 0;
+        switch (format) {
+            case LINES:
+                touchAhead(window, 0);
+                for (int i=0;i<limit;i++) {
+                    if (window.get(i)!='\n') continue;
+                    int end = i>pos && window.get(i-1)=='\r' ? i-1 : i;
+                    this.yield(slice(window, pos, end));
+                    pos = i+1;
+                    touchAhead(window, pos);
+                }
+                if (last && pos<limit) { // last line without '\n'
+                    this.yield(slice(window, pos, limit));
+                    pos = limit;
+                }
+                return pos;
+            case LENGTH_PREFIXED:
+                while (limit-pos>=4) {
+                    int length = window.getInt(pos);
+                    if (length<0) throw new IOException("Wrong record length "+length+" at offset "+(offset+pos)+" of "+file);
+                    if (limit-pos-4<length) break; // in next window
+                    touchAhead(window, pos);
+                    this.yield(slice(window, pos+4, pos+4+length));
+                    pos += 4+length;
+                }
+                break;
+            case FIXED_WIDTH:
+                while (limit-pos>=recordSize) {
+                    touchAhead(window, pos);
+                    this.yield(slice(window, pos, pos+recordSize));
+                    pos += recordSize;
+                }
+                break;
+        }
+        if (last && pos<limit) throw new IOException("Truncated record at offset "+(offset+pos)+" of "+file);
+        return pos;
+    }
+
+    /**
+     * Read one byte of each page till READ_AHEAD after position: page fault is on generator thread, not on consumer.
+     */
+    protected void touchAhead(MappedByteBuffer window, int pos) {
+        int end = (int)Math.min(window.limit(), (long)pos+READ_AHEAD);
+        while (touched<end) {
+            pageSum += window.get(touched);
+            touched += PAGE;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer window, int start, int end) {
+        ByteBuffer b = window.duplicate();
+        b.limit(end);
+        b.position(start);
+        return b.slice();
+    }
+
+    /**
+     * Text view of record without copy: one byte is one char (ASCII, ISO-8859-1).
+     * For UTF-8 with not ASCII chars use StandardCharsets.UTF_8.decode(record).
+     */
+    public static CharSequence asCharSequence(ByteBuffer record) {
+        return new ByteChars(record, record.position(), record.remaining());
+    }
+
+    /**
+     * CharSequence over bytes of buffer.
+     */
+    private static final class ByteChars implements CharSequence {
+        private final ByteBuffer bytes;
+        private final int start, length;
+
+        ByteChars(ByteBuffer bytes, int start, int length) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index<0 || index>=length) throw new IndexOutOfBoundsException("Index "+index+" length "+length);
+            return (char)(bytes.get(start+index)&0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from<0 || to>length || from>to) throw new IndexOutOfBoundsException("Range "+from+".."+to+" length "+length);
+            return new ByteChars(bytes, start+from, to-from);
+        }
+
+        @Override
+        public String toString() {
+            byte[] copy = new byte[length];
+            for (int i=0;i<length;i++) copy[i] = bytes.get(start+i);
+            return new String(copy, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * SPSC ring of records in memory mapped file, shared by producer and consumer process on same host.
+ * Used by MappedRingGenerator (producer) and MappedRingIterator (consumer).
+ *
+ * File layout: header (magic, capacity, consumer closed flag, producer finished flag, producer pid and process start time,
+ * tail and head counters on own cache lines) and data area of capacity bytes. Counters are total written/read bytes, written by release and read by acquire
+ * (VarHandle on mapped buffer), so record bytes are visible before counter in other process.
+ * Record: int length and bytes, aligned to 8. Negative length is marker: WRAP (continue from data start), END, ERROR.
+ *
+ * Producer liveness: there are no EOF between process, so consumer check producer process by pid, process start time
+ * guard pid reuse. Ring of dead producer without finished flag is broken or stale (left by earlier run).
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+final class MappedRing implements Closeable {
+    static final int MAGIC = 0x59524E47; // "YRNG"
+    static final int WRAP = -1; // rest of data area till end is empty
+    static final int END = -2; // generator finished
+    static final int ERROR = -3; // generator failed, int length and UTF-8 message follow
+    static final int ALIGN = 8;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int CLOSED_OFFSET = 8; // consumer closed
+    private static final int FINISHED_OFFSET = 12; // producer write END/ERROR or closed
+    private static final int PID_OFFSET = 16; // producer process
+    private static final int START_OFFSET = 24; // producer process start, epoch millis, 0 - unknown
+    private static final int TAIL_OFFSET = 64; // producer counter
+    private static final int HEAD_OFFSET = 128; // consumer counter
+    static final int HEADER = 192;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    final MappedByteBuffer buffer;
+    final ByteBuffer data; // data area, position is not used
+    final int capacity;
+
+    private MappedRing(FileChannel channel, MappedByteBuffer buffer, int capacity) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        buffer.order(ByteOrder.nativeOrder());
+        ByteBuffer d = buffer.duplicate();
+        d.position(HEADER);
+        data = d.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Init ring in new empty file: counters are zero, magic is written last.
+     * @param capacity bytes of data area, rounded up to ALIGN
+     */
+    static MappedRing create(Path file, int capacity) throws IOException {
+        if (capacity<64) throw new IllegalArgumentException("Ring capacity should be at least 64 bytes: "+capacity);
+        capacity = (capacity+ALIGN-1)/ALIGN*ALIGN;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedRing ring = new MappedRing(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER+(long)capacity), capacity);
+            ring.buffer.putInt(CAPACITY_OFFSET, capacity);
+            ProcessHandle self = ProcessHandle.current();
+            ring.buffer.putLong(PID_OFFSET, self.pid());
+            ring.buffer.putLong(START_OFFSET, self.info().startInstant().map(i -> i.toEpochMilli()).orElse(0L));
+            INTS.setRelease(ring.buffer, MAGIC_OFFSET, MAGIC);
+            return ring;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open ring file what is created by producer.
+     * @return ring or null when file is not ready yet
+     */
+    static MappedRing open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size<HEADER) {
+                channel.close();
+                return null;
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            header.order(ByteOrder.nativeOrder());
+            if ((int)INTS.getAcquire(header, MAGIC_OFFSET)!=MAGIC) {
+                channel.close();
+                return null;
+            }
+            int capacity = header.getInt(CAPACITY_OFFSET);
+            if (capacity<=0 || size<HEADER+(long)capacity) throw new IOException("Broken ring file "+file+": capacity "+capacity+", size "+size);
+            return new MappedRing(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER+(long)capacity), capacity);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    long tail() {
+        return (long)LONGS.getAcquire(buffer, TAIL_OFFSET);
+    }
+
+    void publishTail(long tail) {
+        LONGS.setRelease(buffer, TAIL_OFFSET, tail);
+    }
+
+    long head() {
+        return (long)LONGS.getAcquire(buffer, HEAD_OFFSET);
+    }
+
+    void publishHead(long head) {
+        LONGS.setRelease(buffer, HEAD_OFFSET, head);
+    }
+
+    boolean isConsumerClosed() {
+        return (int)INTS.getAcquire(buffer, CLOSED_OFFSET)!=0;
+    }
+
+    void setConsumerClosed() {
+        INTS.setRelease(buffer, CLOSED_OFFSET, 1);
+    }
+
+    boolean isProducerFinished() {
+        return (int)INTS.getAcquire(buffer, FINISHED_OFFSET)!=0;
+    }
+
+    void setProducerFinished() {
+        INTS.setRelease(buffer, FINISHED_OFFSET, 1);
+    }
+
+    long producerPid() {
+        return buffer.getLong(PID_OFFSET);
+    }
+
+    /**
+     * @return false when producer process is not alive (or pid is reused by other process). Producer in this process
+     * is alive: its thread write END or ERROR on exit.
+     */
+    boolean isProducerAlive() {
+        long pid = producerPid();
+        if (pid==ProcessHandle.current().pid()) return true;
+        Optional<ProcessHandle> producer = ProcessHandle.of(pid);
+        if (producer.isEmpty() || !producer.get().isAlive()) return false;
+        long start = buffer.getLong(START_OFFSET);
+        if (start==0L) return true;
+        return producer.get().info().startInstant().map(i -> Math.abs(i.toEpochMilli()-start)<1000L).orElse(true); // start time has second precision on some OS
+    }
+
+    /**
+     * @return offset in data area of counter
+     */
+    int offset(long counter) {
+        return (int)(counter % capacity);
+    }
+
+    /**
+     * @return bytes of record with length, aligned
+     */
+    static int recordSize(int length) {
+        return (4+length+ALIGN-1)/ALIGN*ALIGN;
+    }
+
+    /**
+     * Wait other process: Thread.yield() and then park with growing delay, up to 1 ms.
+     * There are no notify between process.
+     * @param round count of wait before
+     */
+    static void backoff(int round) throws InterruptedException {
+        if (round<32) Thread.yield();
+        else LockSupport.parkNanos(Math.min(1_000_000L, 1_000L << Math.min(10, round-32)));
+        if (Thread.interrupted()) throw new InterruptedException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close(); // mapping is released by GC
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.function.Function;
+
+
+/**
+ * Producer side of cross-process generator: generator() yield records to SPSC ring in memory mapped file,
+ * MappedRingIterator in other process (JVM on same host) read them. Replacement of socket between pipeline process.
+ *
+ * yield(T) serialize item and copy bytes to ring, wait while ring is full (backpressure by shared head/tail counters).
+ * End of generator is END marker in ring, exception of generator is ERROR marker with message:
+ * consumer throw RuntimeException after all records. When consumer close iterator yield() throw InterruptedException.
+ *
+ * Constructor create ring in temp file and rename it to file, so consumer never see not initialized ring.
+ * Existing file is replaced, but consumer what already map old file read old ring: delete file after use.
+ * Ring has pid of producer process: consumer see dead producer (killed process) as error, and skip ring file
+ * of dead producer what has not finished (stale file of earlier run).
+ * run() execute generator on current thread.
+ *
+ * Example:
+ * <pre>
+ * // process 1
+ * new MappedRingGenerator&lt;String&gt;(path, 1&lt;&lt;20, s -&gt; s.getBytes(UTF_8)) {
+ *     protected void generator() throws InterruptedException { ... yield(line); }
+ * }.run();
+ * // process 2
+ * MappedRingIterator&lt;String&gt; lines = new MappedRingIterator&lt;&gt;(path, b -&gt; UTF_8.decode(b).toString());
+ * </pre>
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public abstract class MappedRingGenerator<T> implements Runnable, Closeable {
+    protected final Path file;
+    protected final Function<? super T, byte[]> serializer;
+    protected volatile boolean closed;
+    private final MappedRing ring;
+    private final ByteBuffer writer; // data area, producer thread only
+    private long tail; // written bytes
+    private long head; // last seen consumer counter
+
+    /**
+     * Create ring file.
+     * @param capacity bytes of ring, record with 4 byte length should fit
+     * @param serializer bytes of item
+     */
+    public MappedRingGenerator(Path file, int capacity, Function<? super T, byte[]> serializer) throws IOException {
+        this.file = Objects.requireNonNull(file);
+        this.serializer = Objects.requireNonNull(serializer);
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        MappedRing r;
+        try {
+            r = MappedRing.create(tmp, capacity);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            r.close();
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        ring = r;
+        writer = ring.data.duplicate().order(ByteOrder.nativeOrder()); // duplicate() is BIG_ENDIAN
+    }
+
+    /**
+     * Producer over other generator.
+     * @param source generator (for example YieldIterator)
+     */
+    public static <T> MappedRingGenerator<T> of(Path file, int capacity, Iterator<? extends T> source, Function<? super T, byte[]> serializer) throws IOException {
+        Objects.requireNonNull(source);
+        return new MappedRingGenerator<T>(file, capacity, serializer) {
+            @Override
+            protected void generator() throws InterruptedException {
+                while (source.hasNext()) this.yield(source.next());
+            }
+        };
+    }
+
+    /**
+     * Generator for put yield(X).
+     * @throws InterruptedException
+     */
+    protected abstract void generator() throws InterruptedException;
+
+    /**
+     * Serialize item and write it to ring, wait while ring is full.
+     * @throws InterruptedException when consumer close iterator or this generator is closed
+     * @throws IllegalArgumentException when record is over ring capacity
+     */
+    protected void yield(T item) throws InterruptedException {
+        if (closed || ring.isConsumerClosed()) throw new InterruptedException("Iterator closed");
+        byte[] bytes = serializer.apply(item);
+        write(bytes.length, bytes);
+    }
+
+    /**
+     * Run generator on current thread and write end marker. Exception of generator is written to ring and thrown.
+     * Return without end marker when consumer close iterator.
+     */
+    @Override
+    public void run() {
+        try {
+            generator();
+            write(MappedRing.END, null);
+        } catch (InterruptedException ei) {
+            if (!closed && !ring.isConsumerClosed()) try {
+                write(MappedRing.END, null); // previous records are not lost
+            } catch (InterruptedException e) {
+                // consumer closed or thread interrupted again
+            }
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException | Error e) {
+            writeError(e);
+            throw e;
+        } finally {
+            ring.setProducerFinished();
+        }
+    }
+
+    private void writeError(Throwable e) {
+        byte[] message = String.valueOf(e).getBytes(StandardCharsets.UTF_8);
+        int max = ring.capacity-MappedRing.ALIGN-4; // record with marker and length
+        if (message.length>max) message = Arrays.copyOf(message, max);
+        try {
+            write(MappedRing.ERROR, message);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt(); // consumer is closed, nobody read error
+        }
+    }
+
+    /**
+     * Write record: data (length, bytes), END or ERROR (marker, length, bytes).
+     */
+    private void write(int length, byte[] bytes) throws InterruptedException {
+        int size = MappedRing.recordSize(length==MappedRing.ERROR ? 4+bytes.length : Math.max(0, length));
+        if (size>ring.capacity) throw new IllegalArgumentException("Record of "+length+" bytes is over ring capacity "+ring.capacity);
+        int pos = ring.offset(tail);
+        if (pos+size>ring.capacity) { // skip rest of data area, record start from begin
+            int rest = ring.capacity-pos;
+            awaitFree(rest);
+            writer.putInt(pos, MappedRing.WRAP);
+            tail += rest;
+            ring.publishTail(tail);
+            pos = 0;
+        }
+        awaitFree(size);
+        writer.putInt(pos, length);
+        int at = pos+4;
+        if (length==MappedRing.ERROR) {
+            writer.putInt(at, bytes.length);
+            at += 4;
+        }
+        if (bytes!=null) {
+            writer.position(at);
+            writer.put(bytes);
+        }
+        tail += size;
+        ring.publishTail(tail); // release: bytes are visible before counter
+    }
+
+    /**
+     * Wait till consumer free space in ring.
+     */
+    private void awaitFree(int size) throws InterruptedException {
+        for (int round=0; tail+size-head>ring.capacity; round++) {
+            head = ring.head();
+            if (tail+size-head<=ring.capacity) return;
+            if (closed || ring.isConsumerClosed()) throw new InterruptedException("Iterator closed");
+            MappedRing.backoff(round);
+        }
+    }
+
+    /**
+     * Release file. Call it after run(): consumer what wait next record has no more records after close().
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        ring.setProducerFinished();
+        ring.close();
+    }
+}
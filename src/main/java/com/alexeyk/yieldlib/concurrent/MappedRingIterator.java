@@ -0,0 +1,231 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+
+/**
+ * Consumer side of cross-process generator: read records what MappedRingGenerator in other process (or thread)
+ * write to SPSC ring in memory mapped file. Free space of ring after each record, so producer continue.
+ *
+ * Iterator wait till producer create file. There are no notify between process: waiting consumer spin by Thread.yield()
+ * and then park up to 1 ms, see MappedRing.backoff().
+ * Error of remote generator is thrown once by next() as RuntimeException with its message, after all records.
+ * Waiting consumer check producer process every 100 ms: dead producer (killed process) without end marker is same error,
+ * as EOF of socket. Ring file of dead producer what has not finished is stale (left by earlier run), iterator wait
+ * till new producer replace it. Use hasNext(Duration) for bound wait.
+ *
+ * Deserializer take read-only view of record bytes in mapped file, it is valid only in deserializer call: copy bytes.
+ * Exception of deserializer is thrown from hasNext()/next() once, its record is skipped.
+ *
+ * Operation hasNext() and next() is thread-safe, but not botch - it is 2 atomic operation.
+ * close() tell producer to stop: its yield() throw InterruptedException.
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public class MappedRingIterator<T> implements Iterator<T>, Closeable {
+    private static final Object NOT_READ = new Object();
+    private static final Object STOP_OBJECT = new Object();
+    private static final Object TIMED_OUT = new Object();
+    private static final long LIVENESS_CHECK_NANOS = 100_000_000L;
+    protected final Path file;
+    protected final Function<? super ByteBuffer, ? extends T> deserializer;
+    protected final Object LOCK = new Object(); // sync object
+    protected volatile boolean closed;
+    private MappedRing ring; // null till producer create file, guarded by LOCK
+    private long head; // read bytes, guarded by LOCK
+    private long tail; // last seen producer counter, guarded by LOCK
+    private Object taken = NOT_READ; // record what hasNext() read, guarded by LOCK
+    private String remoteError; // message of remote generator error, guarded by LOCK
+
+    /**
+     * @param file ring file of MappedRingGenerator
+     * @param deserializer item from record bytes
+     */
+    public MappedRingIterator(Path file, Function<? super ByteBuffer, ? extends T> deserializer) {
+        this.file = Objects.requireNonNull(file);
+        this.deserializer = Objects.requireNonNull(deserializer);
+    }
+
+    @Override
+    public boolean hasNext() {
+        synchronized (LOCK) {
+            if (taken==NOT_READ) taken = read(-1L);
+            return taken!=STOP_OBJECT || remoteError!=null;
+        }
+    }
+
+    /**
+     * hasNext() with timeout.
+     * @throws TimeoutException when producer has not write record or finished in time
+     */
+    public boolean hasNext(Duration timeout) throws TimeoutException {
+        synchronized (LOCK) {
+            if (taken==NOT_READ) {
+                Object item = read(Math.max(0L, timeout.toNanos()));
+                if (item==TIMED_OUT) throw new TimeoutException("Producer has not write record in "+timeout);
+                taken = item;
+            }
+            return taken!=STOP_OBJECT || remoteError!=null;
+        }
+    }
+
+    /**
+     * @throws NoSuchElementException when no more element
+     * @throws RuntimeException with InterruptedException if thread was interrupt. Interrupt flag has restored correctly.
+     * @throws RuntimeException with message of remote generator exception
+     * @throws UncheckedIOException when ring file can not be open
+     * @return next record
+     */
+    @Override
+    public T next() {
+        synchronized (LOCK) {
+            if (!hasNext()) throw new NoSuchElementException();
+            Object item = taken;
+            if (item==STOP_OBJECT) { // throw exception of remote generator
+                String message = remoteError;
+                remoteError = null; // throw once
+                throw new RuntimeException("Generator of "+file+" failed: "+message);
+            }
+            taken = NOT_READ;
+            return (T) item;
+        }
+    }
+
+    /**
+     * Read next record, wait producer. Call under LOCK.
+     * @param timeoutNanos negative for wait without timeout
+     * @return item, STOP_OBJECT or TIMED_OUT
+     */
+    private Object read(long timeoutNanos) {
+        long start = System.nanoTime();
+        try {
+            if (ring==null) {
+                Object opened = openRing(start, timeoutNanos);
+                if (opened!=null) return opened;
+            }
+            while (true) {
+                long checked = System.nanoTime();
+                for (int round=0; head==tail; round++) {
+                    if (closed) return STOP_OBJECT;
+                    tail = ring.tail();
+                    if (head!=tail) break;
+                    if (ring.isProducerFinished()) { // closed without end marker
+                        tail = ring.tail();
+                        if (head==tail) return STOP_OBJECT;
+                        break;
+                    }
+                    long now = System.nanoTime();
+                    if (timeoutNanos>=0 && now-start>=timeoutNanos) return TIMED_OUT;
+                    if (now-checked>=LIVENESS_CHECK_NANOS) {
+                        checked = now;
+                        if (!ring.isProducerAlive()) {
+                            tail = ring.tail(); // records before death
+                            if (head!=tail) break;
+                            remoteError = "producer process "+ring.producerPid()+" is not alive";
+                            return STOP_OBJECT;
+                        }
+                    }
+                    MappedRing.backoff(round);
+                }
+                int pos = ring.offset(head);
+                int length = ring.data.getInt(pos);
+                if (length==MappedRing.WRAP) { // record is at data start
+                    release(ring.capacity-pos);
+                    continue;
+                }
+                if (length==MappedRing.END) {
+                    release(MappedRing.recordSize(0));
+                    return STOP_OBJECT;
+                }
+                if (length==MappedRing.ERROR) {
+                    int n = ring.data.getInt(pos+4);
+                    byte[] message = new byte[n];
+                    ByteBuffer view = ring.data.duplicate();
+                    view.position(pos+8);
+                    view.get(message);
+                    remoteError = new String(message, StandardCharsets.UTF_8);
+                    release(MappedRing.recordSize(4+n));
+                    return STOP_OBJECT;
+                }
+                ByteBuffer record = ring.data.duplicate();
+                record.limit(pos+4+length).position(pos+4);
+                try {
+                    return deserializer.apply(record.slice().asReadOnlyBuffer());
+                } finally { // also on deserializer error: record is skipped, producer is not stalled
+                    release(MappedRing.recordSize(length)); // producer can overwrite record after it
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Can not wait iterator source", ie);
+        }
+    }
+
+    private void release(int size) {
+        head += size;
+        ring.publishHead(head);
+    }
+
+    /**
+     * Wait till producer create ring file, skip stale file of dead producer. Call under LOCK.
+     * @return null when ring is open, STOP_OBJECT when iterator is closed or TIMED_OUT
+     */
+    private Object openRing(long start, long timeoutNanos) throws InterruptedException {
+        for (int round=0; !closed; round++) {
+            MappedRing r = null;
+            try {
+                r = MappedRing.open(file);
+                if (r!=null && !r.isProducerFinished() && !r.isProducerAlive()) { // stale: wait new producer
+                    r.close();
+                    r = null;
+                }
+            } catch (NoSuchFileException e) {
+                // producer has not create file yet
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (r!=null) {
+                ring = r;
+                head = ring.head();
+                tail = head;
+                return null;
+            }
+            if (timeoutNanos>=0 && System.nanoTime()-start>=timeoutNanos) return TIMED_OUT;
+            MappedRing.backoff(round);
+        }
+        return STOP_OBJECT;
+    }
+
+    /**
+     * Stop reading and tell producer to stop. Consumer what wait in hasNext()/next() is wake up and has no more items.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (LOCK) { // waiting reader see closed in 1 ms
+            taken = STOP_OBJECT;
+            remoteError = null;
+            if (ring!=null) {
+                ring.setConsumerClosed();
+                ring.close();
+            }
+        }
+    }
+}
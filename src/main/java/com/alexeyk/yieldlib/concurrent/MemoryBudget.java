@@ -0,0 +1,148 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+
+/**
+ * Limit of bytes for items what are generated but not taken by consumer.
+ *
+ * Generator acquire item size before put item to queue and wait while budget is exhausted.
+ * Consumer release item size after take. One item bigger that limit is allowed when nothing is in flight,
+ * else generator with large item will wait forever.
+ *
+ * Budget can have parent budget, for example global budget shared by all generators in the JVM:
+ * <pre>
+ * new MemoryBudget(64L&lt;&lt;20, MemoryBudget.global());
+ * </pre>
+ * Parent limit is soft: parent allow one item of child budget what has nothing else in flight, so parent can be over limit
+ * by one item per child. Only budget without parent is hard limit (except one oversized item when nothing is in flight).
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public class MemoryBudget {
+    private static final MemoryBudget GLOBAL = new MemoryBudget(Runtime.getRuntime().maxMemory()/4);
+
+    protected final Object WAIT_OBJECT = new Object(); // sync object
+    protected final MemoryBudget parent;
+    protected volatile long limit;
+    protected long used; // guarded by WAIT_OBJECT
+
+    public MemoryBudget(long limitBytes) {
+        this(limitBytes, null);
+    }
+
+    /**
+     * @param limitBytes max bytes in flight
+     * @param parent also acquire from parent budget, can be null. Parent limit is soft: one item of this budget
+     *        is allowed when this budget has nothing else in flight.
+     */
+    public MemoryBudget(long limitBytes, MemoryBudget parent) {
+        if (limitBytes<1) throw new IllegalArgumentException("Budget limit should be positive: "+limitBytes);
+        this.limit = limitBytes;
+        this.parent = parent;
+    }
+
+    /**
+     * Budget shared by all generators in the JVM. Default limit is 1/4 of max heap, use setLimit() for change.
+     */
+    public static MemoryBudget global() {
+        return GLOBAL;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public void setLimit(long limitBytes) {
+        if (limitBytes<1) throw new IllegalArgumentException("Budget limit should be positive: "+limitBytes);
+        synchronized (WAIT_OBJECT) {
+            limit = limitBytes;
+            WAIT_OBJECT.notifyAll();
+        }
+    }
+
+    /**
+     * @return bytes in flight now
+     */
+    public long getUsed() {
+        synchronized (WAIT_OBJECT) {
+            return used;
+        }
+    }
+
+    /**
+     * Wait till budget has space for bytes and take it.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        acquire(bytes, null);
+    }
+
+    /**
+     * @param child budget what acquire from this parent. Acquire is allowed when child has nothing else in flight,
+     *        else generators of shared parent can wait each other forever.
+     */
+    private void acquire(long bytes, MemoryBudget child) throws InterruptedException {
+        if (bytes<0) throw new IllegalArgumentException("Negative size: "+bytes);
+        synchronized (WAIT_OBJECT) {
+            while (!hasSpace(bytes, child)) WAIT_OBJECT.wait();
+            used += bytes;
+        }
+        if (parent!=null) try {
+            parent.acquire(bytes, this);
+        } catch (InterruptedException | RuntimeException e) {
+            release(bytes, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Take space for bytes without wait.
+     * @return false when budget or parent has no space now
+     */
+    public boolean tryAcquire(long bytes) {
+        return tryAcquire(bytes, null);
+    }
+
+    private boolean tryAcquire(long bytes, MemoryBudget child) {
+        if (bytes<0) throw new IllegalArgumentException("Negative size: "+bytes);
+        synchronized (WAIT_OBJECT) {
+            if (!hasSpace(bytes, child)) return false;
+            used += bytes;
+        }
+        if (parent!=null && !parent.tryAcquire(bytes, this)) {
+            release(bytes, false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Call under WAIT_OBJECT.
+     */
+    private boolean hasSpace(long bytes, MemoryBudget child) {
+        return used<=0 || used+bytes<=limit || (child!=null && child.getUsed()<=bytes);
+    }
+
+    /**
+     * Return bytes to budget.
+     */
+    public void release(long bytes) {
+        release(bytes, true);
+    }
+
+    private void release(long bytes, boolean withParent) {
+        synchronized (WAIT_OBJECT) {
+            used -= bytes;
+            WAIT_OBJECT.notifyAll();
+        }
+        if (withParent && parent!=null) parent.release(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget{used=" + getUsed() + ", limit=" + limit + '}';
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+
+
+/**
+ * Generator what route items by key to N partitions, for parallel stateful aggregation:
+ * all items with same key go to same partition, so same consumer, in yield order.
+ *
+ * yield(T) compute partition on generator thread and put item to buffer of this partition. Each partition has own
+ * bounded SPSC buffer (one producer, one consumer) without lock, so partition consumers do not compete for one yieldWindow.
+ *
+ * Read by <code>partition(n)</code> iterators, each iterator should be read by one thread. Read all partitions concurrently:
+ * generator wait when buffer of any partition is full, so partitions read one by one in one thread can deadlock.
+ * Or call <code>forEachPartition(worker)</code>: it start one worker thread per partition and wait all.
+ *
+ * Error of generator is thrown by each partition iterator after its items.
+ *
+ * Example:
+ * <pre>
+ * PartitionedGenerator&lt;Order&gt; orders = PartitionedGenerator.of(orderIterator, 4, Order::getCustomerId);
+ * orders.forEachPartition((order, partition) -&gt; totals[partition].merge(order.getCustomerId(), order.getSum(), Long::sum));
+ * </pre>
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public abstract class PartitionedGenerator<T> implements Closeable {
+    protected static final Object STOP_OBJECT = new Object();
+    protected final Thread generator;
+    private final SpscBuffer[] buffers;
+    protected final Function<? super T, ?> keyFunction;
+    protected final StartPolicy startPolicy;
+    protected volatile Throwable nextErr; // Error or RuntimeException
+    protected volatile boolean started;
+    protected volatile boolean closed;
+    protected final Object leakRecord; // GeneratorLeakDetector, null when not sampled
+    private final Iterator<T>[] iterators;
+
+    /**
+     * @param partitions count of partitions, for example count of CPU
+     * @param keyFunction key of item, items with equals key go to same partition
+     */
+    public PartitionedGenerator(int partitions, Function<? super T, ?> keyFunction) {
+        this(partitions, keyFunction, 64, StartPolicy.EAGER);
+    }
+
+    /**
+     * @param partitions count of partitions, for example count of CPU
+     * @param keyFunction key of item, items with equals key go to same partition
+     * @param bufferSize items in buffer of each partition, rounded up to power of 2
+     * @param startPolicy when start generator thread
+     */
+    public PartitionedGenerator(int partitions, Function<? super T, ?> keyFunction, int bufferSize, StartPolicy startPolicy) {
+        if (partitions<1) throw new IllegalArgumentException("Partitions should be positive: "+partitions);
+        this.keyFunction = Objects.requireNonNull(keyFunction);
+        this.startPolicy = Objects.requireNonNull(startPolicy);
+        buffers = new SpscBuffer[partitions];
+        iterators = new Iterator[partitions];
+        for (int i=0;i<partitions;i++) {
+            buffers[i] = new SpscBuffer(bufferSize);
+            iterators[i] = new PartitionIterator(buffers[i]);
+        }
+        String threadName="iterator-generator-"+getClass().getSimpleName();
+        Runnable body = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PartitionedGenerator.this.generator();
+                    putStop();
+                } catch (InterruptedException ei) {
+                    // ignore interrupt - it is raw thread body. Buffered items are not lost.
+                    putStop();
+                } catch (Throwable e) {
+                    if (!closed) nextErr = e; // closed generator has no more items
+                    putStop();
+                }
+            }
+        };
+        generator = GeneratorThreads.newThread(body, threadName, startPolicy);
+        if (!generator.isAlive()) generator.setDaemon(true); // spare thread is started daemon
+        leakRecord = GeneratorLeakDetector.track(this, generator);
+        if (startPolicy.isEager()) launch();
+    }
+
+    /**
+     * Partitioning adapter over other generator: items of source are routed on own generator thread.
+     * Source is closed by close() when it is Closeable.
+     * @param source generator (for example YieldIterator)
+     */
+    public static <T> PartitionedGenerator<T> of(Iterator<? extends T> source, int partitions, Function<? super T, ?> keyFunction) {
+        Objects.requireNonNull(source);
+        return new PartitionedGenerator<T>(partitions, keyFunction) {
+            @Override
+            protected void generator() throws InterruptedException {
+                while (source.hasNext()) this.yield(source.next());
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                if (source instanceof Closeable) try {
+                    ((Closeable)source).close();
+                } catch (IOException e) {
+                    System.err.println(getClass().getName()+": Can not close source: "+e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Put stop marker to each partition after buffered items. Call from generator thread on exit.
+     */
+    private void putStop() {
+        for (SpscBuffer buffer:buffers) {
+            while (!closed) try {
+                buffer.put(STOP_OBJECT);
+                break;
+            } catch (InterruptedException ei) {
+                // ignore interrupt - it is raw thread body on exit status. close() wake consumers.
+            }
+        }
+    }
+
+    /**
+     * Start generator thread, for StartPolicy.MANUAL. Repeated call or call after close() is ignored.
+     */
+    public void launch() {
+        if (started) return;
+        synchronized (this) {
+            if (started || closed) return;
+            started = true;
+        }
+        start();
+    }
+
+    /**
+     * Start generator thread, called once by launch(). Subclass can override it for delay start and call super.start() later.
+     */
+    protected void start() {
+        GeneratorThreads.start(generator);
+    }
+
+    /**
+     * Start generator thread on first read for StartPolicy.LAZY.
+     */
+    protected void ensureStarted() {
+        if (closed) return;
+        if (startPolicy==StartPolicy.MANUAL) throw new IllegalStateException("Generator is not started, call launch() before read");
+        launch();
+    }
+
+    /**
+     * Generator for put yield(X).
+     * @throws InterruptedException
+     */
+    protected abstract void generator() throws InterruptedException;
+
+    /**
+     * Put item to buffer of its partition, wait while this buffer is full.
+     * @param item not null
+     * @throws InterruptedException when generator is closed
+     */
+    protected void yield(T item) throws InterruptedException {
+        Objects.requireNonNull(item);
+        buffers[partitionOf(item)].put(item);
+    }
+
+    /**
+     * @return partition of item by hash of its key, null key go to partition 0
+     */
+    public int partitionOf(T item) {
+        int h = Objects.hashCode(keyFunction.apply(item));
+        h ^= h>>>16; // spread high bits, as HashMap
+        return Math.floorMod(h, buffers.length);
+    }
+
+    /**
+     * @return count of partitions
+     */
+    public int partitions() {
+        return buffers.length;
+    }
+
+    /**
+     * Iterator of one partition. Same iterator is returned for same n, read it by one thread.
+     * @param n partition from 0 till partitions()-1
+     */
+    public Iterator<T> partition(int n) {
+        return iterators[n];
+    }
+
+    /**
+     * Read each partition by own worker thread and wait all. Worker is called by one thread for each partition,
+     * so it can update state of partition without lock.
+     * First error of generator or worker close generator and is thrown after all workers stop.
+     * @param worker accept item and its partition
+     */
+    public void forEachPartition(ObjIntConsumer<? super T> worker) {
+        Objects.requireNonNull(worker);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[buffers.length];
+        for (int p=0;p<workers.length;p++) {
+            final int partition = p;
+            final Iterator<T> items = iterators[p];
+            workers[p] = GeneratorThreads.newThread(() -> {
+                try {
+                    while (items.hasNext()) worker.accept(items.next(), partition);
+                } catch (Throwable e) {
+                    if (failure.compareAndSet(null, e)) close(); // stop generator and other workers
+                }
+            }, "partition-worker-"+p);
+            workers[p].setDaemon(true);
+        }
+        if (!started) ensureStarted();
+        for (Thread t:workers) t.start();
+        try {
+            for (Thread t:workers) t.join();
+        } catch (InterruptedException ie) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Thread interrupted.", ie);
+        }
+        Throwable err = failure.get();
+        if (err instanceof RuntimeException) throw (RuntimeException) err;
+        if (err instanceof Error) throw (Error) err;
+        if (err!=null) throw new RuntimeException("Partition worker stop with error", err); // never
+    }
+
+    /**
+     * Ensure close thread, does not wait it.
+     * Buffered items are dropped. Consumer what wait in hasNext()/next() is wake up and has no more items.
+     */
+    @Override
+    public void close() {
+        GeneratorLeakDetector.closed(leakRecord);
+        closed = true;
+        nextErr = null;
+        for (SpscBuffer buffer:buffers) buffer.close();
+        if (generator.isAlive()) generator.interrupt();
+    }
+
+    /**
+     * close() and wait generator thread exit.
+     * @return false when generator thread is still alive after timeout (generator ignore interrupt, for example blocking IO)
+     */
+    public boolean close(Duration timeout) {
+        close();
+        try {
+            generator.join(Math.max(1L, timeout.toMillis()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return !generator.isAlive();
+    }
+
+    /**
+     * Consumer of one partition. Item is taken to local slot by hasNext(), so one reader thread only.
+     */
+    private class PartitionIterator implements Iterator<T> {
+        private final SpscBuffer buffer;
+        private Object taken; // item what hasNext() take from buffer, null when not taken
+        private boolean errorThrown;
+
+        PartitionIterator(SpscBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (taken==null) {
+                if (!started) ensureStarted();
+                try {
+                    taken = buffer.take();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Thread interrupted.", ie);
+                }
+                if (taken==null) taken = STOP_OBJECT; // closed
+            }
+            return taken!=STOP_OBJECT || (nextErr!=null && !errorThrown);
+        }
+
+        /**
+         * @throws NoSuchElementException when no more element
+         * @throws RuntimeException with InterruptedException if thread was interrupt. Interrupt flag has restored correctly.
+         * @throws Error or RuntimeException - exception from generator, once for each partition
+         */
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Object item = taken;
+            if (item==STOP_OBJECT) { // throw exception from generator
+                errorThrown = true;
+                Throwable doThrow = nextErr;
+                if (doThrow instanceof RuntimeException) throw (RuntimeException) doThrow;
+                if (doThrow instanceof Error) throw (Error) doThrow;
+                throw new RuntimeException("Iteratorthread stop with error", doThrow); // never
+            }
+            taken = null;
+            return (T) item;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Consumer waits what tell ForkJoinPool about blocking (ForkJoinPool.managedBlock), so pool start spare worker
+ * and parallel stream or ForkJoin task what read iterator does not starve pool or deadlock small common pool.
+ * Thread what is not pool worker wait as usual, without extra cost.
+ *
+ * Disable: <code>-Dyieldlib.managedBlock=false</code>.
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+final class PoolBlocking {
+    static volatile boolean enabled = Boolean.parseBoolean(System.getProperty("yieldlib.managedBlock", "true"));
+
+    /**
+     * Blocking wait.
+     */
+    interface Wait {
+        /** @return result of wait, for example false on timeout */
+        boolean await() throws InterruptedException;
+    }
+
+    private PoolBlocking() {
+    }
+
+    /**
+     * @return true when current thread is ForkJoinPool worker and wait should be managed
+     */
+    static boolean inPool() {
+        return enabled && Thread.currentThread() instanceof ForkJoinWorkerThread;
+    }
+
+    /**
+     * Run wait, in pool worker via ForkJoinPool.managedBlock.
+     * @return result of wait
+     */
+    static boolean block(Wait wait) throws InterruptedException {
+        if (!inPool()) return wait.await();
+        class Blocker implements ForkJoinPool.ManagedBlocker {
+            boolean done, result;
+
+            @Override
+            public boolean block() throws InterruptedException {
+                result = wait.await();
+                done = true;
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return done;
+            }
+        }
+        Blocker blocker = new Blocker();
+        ForkJoinPool.managedBlock(blocker);
+        return blocker.result;
+    }
+
+    /**
+     * monitor.wait(), call under monitor lock.
+     * @param timeoutNanos 0 or negative - without timeout
+     */
+    static void wait(Object monitor, long timeoutNanos) throws InterruptedException {
+        long millis = timeoutNanos>0 ? timeoutNanos/1_000_000L : 0L;
+        int nanos = timeoutNanos>0 ? (int)(timeoutNanos%1_000_000L) : 0; // timeoutNanos>0: millis or nanos is not 0
+        if (!inPool()) {
+            monitor.wait(millis, nanos);
+            return;
+        }
+        block(() -> {
+            monitor.wait(millis, nanos);
+            return true;
+        });
+    }
+
+    /**
+     * queue.take() or queue.poll(timeout).
+     * @param timeoutNanos negative - without timeout
+     * @return item or null on timeout
+     */
+    static <E> E take(BlockingQueue<E> queue, long timeoutNanos) throws InterruptedException {
+        if (!inPool()) return timeoutNanos<0 ? queue.take() : queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        class Taker implements ForkJoinPool.ManagedBlocker {
+            E item;
+            boolean done;
+
+            @Override
+            public boolean block() throws InterruptedException {
+                if (item==null) item = timeoutNanos<0 ? queue.take() : queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+                done = true;
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return done || (item = queue.poll())!=null;
+            }
+        }
+        Taker taker = new Taker();
+        ForkJoinPool.managedBlock(taker);
+        return taker.item;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+
+/**
+ * How many items generator may produce ahead of consumer.
+ *
+ * <ul>
+ * <li><code>NONE</code> - strict lockstep, as python yield: generator thread run only while consumer wait next item.</li>
+ * <li><code>fixed(N)</code> - generator may be N items ahead of consumer.</li>
+ * <li><code>adaptive(min, max)</code> - ahead limit is changed between min and max by observed producer and consumer waiting, see AdaptiveBlockingQueue.</li>
+ * </ul>
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public final class PrefetchPolicy {
+    /** Strict lockstep: generator does not run ahead of consumer. */
+    public static final PrefetchPolicy NONE = new PrefetchPolicy(0, 0);
+
+    /** Min count of items generated ahead of consumer. */
+    public final int min;
+    /** Max count of items generated ahead of consumer. */
+    public final int max;
+
+    private PrefetchPolicy(int min, int max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @param items how many items generator may be ahead, should be positive
+     */
+    public static PrefetchPolicy fixed(int items) {
+        if (items<1) throw new IllegalArgumentException("Prefetch items should be positive: "+items+". Use PrefetchPolicy.NONE for lockstep.");
+        return new PrefetchPolicy(items, items);
+    }
+
+    /**
+     * @param min low limit of items generated ahead, should be positive
+     * @param max high limit of items generated ahead
+     */
+    public static PrefetchPolicy adaptive(int min, int max) {
+        if (min<1 || max<min) throw new IllegalArgumentException("Wrong adaptive prefetch bounds: min="+min+" max="+max);
+        return new PrefetchPolicy(min, max);
+    }
+
+    public boolean isLockstep() {
+        return max==0;
+    }
+
+    public boolean isAdaptive() {
+        return min<max;
+    }
+
+    @Override
+    public String toString() {
+        if (isLockstep()) return "PrefetchPolicy.NONE";
+        if (isAdaptive()) return "PrefetchPolicy.adaptive("+min+", "+max+")";
+        return "PrefetchPolicy.fixed("+max+")";
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+
+/**
+ * Iterable wrapper that run source generator once and replay generated items for any count of iterators.
+ *
+ * Items are cached while produced. Each <code>iterator()</code> start from first item: late reader take
+ * items from cache and then follow the live producer. Source is read only by one reader thread at time,
+ * other readers wait till item appear in cache.
+ *
+ * Cache can be bounded by <code>maxCached</code> items. When cache is full the oldest item is evicted,
+ * and reader that has not read it yet take IllegalStateException (eviction) - reader should not fall behind over maxCached items.
+ *
+ * Error from source is cached too and thrown from next() to every reader on same position.
+ *
+ * Example:
+ * <pre>
+ * ReplayIterable&lt;Integer&gt; replay = new ReplayIterable&lt;&gt;(new YieldIterator&lt;Integer&gt;() {...});
+ * for (Integer i:replay) ... // first pass run generator
+ * for (Integer i:replay) ... // second pass from cache
+ * </pre>
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public class ReplayIterable<T> implements Iterable<T>, Closeable {
+    protected static final Object ERROR_OBJECT = new Object();
+    protected final Iterator<? extends T> source;
+    protected final Object LOCK = new Object(); // sync object
+    protected final int maxCached;
+    protected Object[] cache; // ring buffer, item with index i at cache[i % cache.length]
+    protected long evicted; // count of items removed from cache head
+    protected long produced; // count of items read from source
+    protected boolean finished; // source has no more items
+    protected Throwable sourceErr; // Error or RuntimeException from source
+    protected boolean pulling; // some reader now read source out of LOCK
+
+    /**
+     * Unbounded cache.
+     * @param source generator (for example YieldIterator)
+     */
+    public ReplayIterable(Iterator<? extends T> source) {
+        this(source, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param source generator (for example YieldIterator)
+     * @param maxCached max items in cache, older items will be evicted
+     */
+    public ReplayIterable(Iterator<? extends T> source, int maxCached) {
+        Objects.requireNonNull(source);
+        if (maxCached<1) throw new IllegalArgumentException("maxCached should be positive: "+maxCached);
+        this.source = source;
+        this.maxCached = maxCached;
+        this.cache = new Object[Math.min(16, maxCached)];
+    }
+
+    /**
+     * @return count of items what are stored now in the cache
+     */
+    public int cachedSize() {
+        synchronized (LOCK) {
+            return (int)(produced-evicted);
+        }
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new ReplayIterator();
+    }
+
+    /**
+     * Return item by index in sequence, read source if need.
+     * @return item, LOCK object as end marker or ERROR_OBJECT when source has thrown sourceErr
+     */
+    protected Object fetch(long index) {
+        synchronized (LOCK) {
+            while (true) {
+                if (index<evicted) throw new IllegalStateException("Item "+index+" was evicted from replay cache (maxCached="+maxCached+")");
+                if (index<produced) return cache[(int)(index % cache.length)];
+                if (finished) return sourceErr!=null ? ERROR_OBJECT : LOCK;
+                if (!pulling) break;
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Can not wait replay source", ex);
+                }
+            }
+            pulling = true;
+        }
+        // read source out of lock - readers of cached items should not wait slow generator
+        Object item = LOCK;
+        Throwable err = null;
+        try {
+            if (source.hasNext()) item = source.next();
+        } catch (NoSuchElementException e) {
+            // source is finished
+        } catch (RuntimeException | Error e) {
+            err = e;
+        }
+        if (err!=null && (err.getCause() instanceof InterruptedException || Thread.currentThread().isInterrupted())) {
+            // this reader is interrupted, source is not failed: other reader can pull it
+            synchronized (LOCK) {
+                pulling = false;
+                LOCK.notifyAll();
+            }
+            Thread.currentThread().interrupt();
+            if (err instanceof Error) throw (Error) err;
+            throw (RuntimeException) err;
+        }
+        synchronized (LOCK) {
+            pulling = false;
+            if (item!=LOCK) append(item);
+            else {
+                finished = true;
+                sourceErr = err;
+            }
+            LOCK.notifyAll();
+        }
+        return fetch(index);
+    }
+
+    /** Call under LOCK */
+    private void append(Object item) {
+        int size = (int)(produced-evicted);
+        if (size==cache.length) {
+            if (cache.length<maxCached) { // grow ring
+                Object[] newCache = new Object[(int)Math.min((long)cache.length*2, maxCached)];
+                for (long i=evicted;i<produced;i++) newCache[(int)(i % newCache.length)] = cache[(int)(i % cache.length)];
+                cache = newCache;
+            } else {
+                cache[(int)(evicted % cache.length)] = null;
+                evicted++;
+            }
+        }
+        cache[(int)(produced % cache.length)] = item;
+        produced++;
+    }
+
+    /**
+     * Close source if it Closeable. Cached items still available for reading.
+     */
+    @Override
+    public void close() throws IOException {
+        if (source instanceof Closeable) ((Closeable)source).close();
+    }
+
+    protected class ReplayIterator implements Iterator<T> {
+        private long position;
+        private Object nextItem = LOCK; // LOCK = not fetched
+        private boolean failed; // error was thrown to this reader
+
+        @Override
+        public boolean hasNext() {
+            if (failed) return false;
+            if (nextItem==LOCK) nextItem = fetch(position);
+            return nextItem!=LOCK;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            if (nextItem==ERROR_OBJECT) { // every reader take same error once
+                failed = true;
+                if (sourceErr instanceof RuntimeException) throw (RuntimeException) sourceErr;
+                if (sourceErr instanceof Error) throw (Error) sourceErr;
+                throw new RuntimeException("Source stop with error", sourceErr); // never
+            }
+            T take = (T)nextItem;
+            nextItem = LOCK;
+            position++;
+            return take;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Bounded ring buffer for one producer thread and one consumer thread, without lock.
+ * Producer publish item by volatile tail, consumer free place by volatile head.
+ * Waiting side spin by Thread.yield() and then park, other side unpark it after publish.
+ * Consumer on ForkJoinPool worker park via ForkJoinPool.managedBlock.
+ *
+ * Item should not be null. After close() put() throw InterruptedException and take() return null.
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+final class SpscBuffer {
+    private static final int SPIN = 64; // Thread.yield() before park
+
+    private final Object[] items;
+    private final int mask;
+    private volatile long head; // index of next take, written by consumer
+    private volatile long tail; // index of next put, written by producer
+    private volatile Thread consumerWaiter;
+    private volatile Thread producerWaiter;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity max items, rounded up to power of 2
+     */
+    SpscBuffer(int capacity) {
+        if (capacity<1) throw new IllegalArgumentException("Capacity should be positive: "+capacity);
+        int size = 1;
+        while (size<capacity) size <<= 1;
+        items = new Object[size];
+        mask = size-1;
+    }
+
+    /**
+     * Put item, wait while buffer is full. Call from producer thread only.
+     * @throws InterruptedException when buffer is closed or thread interrupted
+     */
+    void put(Object item) throws InterruptedException {
+        long t = tail;
+        for (int spin=0; t-head>=items.length; spin++) {
+            if (closed) throw new InterruptedException("Iterator closed");
+            if (spin<SPIN) {
+                Thread.yield();
+                continue;
+            }
+            producerWaiter = Thread.currentThread();
+            if (t-head>=items.length && !closed) LockSupport.park(this); // consumer unpark after take
+            producerWaiter = null;
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+        if (closed) throw new InterruptedException("Iterator closed");
+        items[(int)t & mask] = item;
+        tail = t+1;
+        Thread w = consumerWaiter;
+        if (w!=null) LockSupport.unpark(w);
+    }
+
+    /**
+     * Take item, wait while buffer is empty. Call from consumer thread only.
+     * @return item or null when buffer is closed
+     */
+    Object take() throws InterruptedException {
+        final long h = head;
+        for (int spin=0; tail==h; spin++) {
+            if (closed) return null;
+            if (spin<SPIN) {
+                Thread.yield();
+                continue;
+            }
+            consumerWaiter = Thread.currentThread();
+            PoolBlocking.block(() -> {
+                if (tail==h && !closed) LockSupport.park(this); // producer unpark after put
+                return true;
+            });
+            consumerWaiter = null;
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+        if (closed) return null; // drop items after close
+        int i = (int)h & mask;
+        Object item = items[i];
+        items[i] = null;
+        head = h+1;
+        Thread w = producerWaiter;
+        if (w!=null) LockSupport.unpark(w);
+        return item;
+    }
+
+    /**
+     * @return items in buffer now
+     */
+    int size() {
+        long h = head; // head before tail: size is not negative
+        return (int)(tail-h);
+    }
+
+    int capacity() {
+        return items.length;
+    }
+
+    /**
+     * Wake up waiting producer and consumer.
+     */
+    void close() {
+        closed = true;
+        Thread w = producerWaiter;
+        if (w!=null) LockSupport.unpark(w);
+        w = consumerWaiter;
+        if (w!=null) LockSupport.unpark(w);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+
+/**
+ * When internal generator thread should be started.
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public enum StartPolicy {
+    /** Start thread in constructor. Default, generator work before first read. */
+    EAGER,
+    /** Start thread on first <code>hasNext()</code> or <code>next()</code> call. Iterator that never read will not create thread. */
+    LAZY,
+    /** Start thread only by explicit <code>launch()</code> call. Read before start throw IllegalStateException. */
+    MANUAL,
+    /**
+     * As EAGER, but generator take already started spare thread (see GeneratorThreads.setWarmThreads()),
+     * so time to first element has no thread create and start. Generator of GeneratorScope use thread of scope as EAGER.
+     */
+    PRESTARTED;
+
+    /**
+     * @return true when thread is started in constructor
+     */
+    public boolean isEager() {
+        return this==EAGER || this==PRESTARTED;
+    }
+}
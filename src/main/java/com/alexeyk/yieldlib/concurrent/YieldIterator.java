@@ -5,8 +5,16 @@
 package com.alexeyk.yieldlib.concurrent;
 
 import java.io.Closeable;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.stream.Stream;
 
 
 /**
@@ -20,9 +28,30 @@ import java.util.NoSuchElementException;
  * Operation hasNext() and next() is thread-safe, but not botch - it is 2 atomic operation. 
  * You can be take hasNext()==true but another threadcan take next() before first thread take.
  * 
+ * hasNext() take ready item from yieldWindow to consumer slot (one lock per item), next() take it from slot by CAS without lock.
+ * So generator can continue after hasNext(), not after next(). With many readers item of hasNext() can be taken by next()
+ * of other reader: each item is taken once, but order of items between readers is not defined.
+ * 
+ * For limit waiting of slow generator use poll(timeout), hasNext(timeout) or setDeadline().
+ * 
+ * After close() consumer has no more items: waiting hasNext() return false and next() throw NoSuchElementException,
+ * generator yield() throw InterruptedException. close(timeout) also wait generator thread exit.
+ * 
+ * skip(n) drop next n items on generator thread without exchange. Generator can jump ahead itself by claimSkip().
+ * 
+ * yieldFrom(source) hand source to consumer: consumer read it direct, without exchange per item.
+ * 
+ * chunked(size, maxWait) and windowed(size, step) return view what read chunks: generator collect chunk and hand it by one exchange.
+ * 
+ * Consumer on ForkJoinPool worker (parallel stream, ForkJoin task) wait via ForkJoinPool.managedBlock, so pool start spare worker.
+ * 
  * Implementation should override <code>generator()</code> when call many times method yield(T).
- * By defauld internal thread start in the constructor by call protected start().You can override start() and call generator.start() later.
- * ToDo it is bad practicle start thread into constructor.
+ * By defauld internal thread start in the constructor (StartPolicy.EAGER). Use StartPolicy.LAZY for start on first read
+ * or StartPolicy.MANUAL for start by call launch(). StartPolicy.PRESTARTED run generator on already started spare thread,
+ * for low time to first element (see GeneratorThreads).
+ * 
+ * By default generator is one item ahead of consumer: it put item to yieldWindow and continue work till next yield(T).
+ * With PrefetchPolicy.NONE generator is work only when consumer wait next item (strict lockstep, as python).
  * 
  * todo name: YieldIterator or YieldGenerator?
  * 
@@ -35,44 +64,152 @@ public abstract class YieldIterator<T> implements Iterator<T>, Closeable {
     protected final Thread generator;
     protected volatile Throwable nextErr; // Error or RuntimeException
     protected volatile Object yieldWindow;
+    protected final StartPolicy startPolicy;
+    protected final boolean lockstep; // PrefetchPolicy.NONE
+    protected volatile boolean started;
+    protected boolean demand; // lockstep: consumer wait next item, guarded by WAIT_OBJECT
+    protected volatile long deadline; // System.nanoTime()
+    protected volatile boolean hasDeadline;
+    protected final Object leakRecord; // GeneratorLeakDetector, null when not sampled
+    protected volatile GeneratorScope scope; // can be null
+    protected volatile Throwable cancelCause; // error for consumer instead of end on close(), set by scope
+    protected volatile boolean closed;
+    protected long skipCount; // next yields what should be dropped by generator, guarded by WAIT_OBJECT
+    private volatile DelegateSource delegate; // source of yieldFrom() what consumer read now
+    private volatile ChunkBuffer chunker; // chunked() or windowed(), guarded by WAIT_OBJECT
+    private volatile Object cached = NOT_CACHED; // item what hasNext() take from yieldWindow, set under WAIT_OBJECT
+    private static final Object NOT_CACHED = new Object();
+    private static final AtomicReferenceFieldUpdater<YieldIterator, Object> CACHED =
+            AtomicReferenceFieldUpdater.newUpdater(YieldIterator.class, Object.class, "cached");
 
     public YieldIterator() {
+        this(StartPolicy.EAGER);
+    }
+
+    public YieldIterator(StartPolicy startPolicy) {
+        this(startPolicy, PrefetchPolicy.fixed(1));
+    }
+
+    /**
+     * @param startPolicy when start generator thread
+     * @param prefetchPolicy only PrefetchPolicy.NONE or fixed(1) is supported: there are only one yieldWindow. Use YieldIteratorQueueImpl for more.
+     */
+    public YieldIterator(StartPolicy startPolicy, PrefetchPolicy prefetchPolicy) {
+        this(startPolicy, prefetchPolicy, null);
+    }
+
+    /**
+     * Generator owned by scope: thread is created by scope thread factory, scope close it.
+     */
+    public YieldIterator(GeneratorScope scope) {
+        this(StartPolicy.EAGER, PrefetchPolicy.fixed(1), Objects.requireNonNull(scope));
+    }
+
+    /**
+     * @param startPolicy when start generator thread
+     * @param prefetchPolicy only PrefetchPolicy.NONE or fixed(1) is supported
+     * @param scope owner of generator, can be null
+     */
+    public YieldIterator(StartPolicy startPolicy, PrefetchPolicy prefetchPolicy, GeneratorScope scope) {
+        Objects.requireNonNull(startPolicy);
+        if (prefetchPolicy.max>1) throw new IllegalArgumentException(prefetchPolicy+" is not supported by YieldIterator, use YieldIteratorQueueImpl");
+        this.startPolicy = startPolicy;
+        this.lockstep = prefetchPolicy.isLockstep();
         yieldWindow = WAIT_OBJECT;
         String threadName="iterator-generator-"+getClass().getSimpleName();  // fixme Can not see class name on thread list. Why?
-        generator = new Thread(threadName) {
+        Runnable body = new Runnable() {
             @Override
             public void run() {
                 try {
+                    if (lockstep) awaitDemand();
                     YieldIterator.this.generator();
-                    synchronized (WAIT_OBJECT) {
-                        while (yieldWindow!=WAIT_OBJECT) WAIT_OBJECT.wait();
-                        YieldIterator.this.yieldWindow=STOP_OBJECT;
-                        WAIT_OBJECT.notifyAll();
-                    }
+                    putStop(null);
                 } catch (InterruptedException ei) {
-                    // ignore interrupt - it is raw thread body.
-                    yieldWindow = STOP_OBJECT;
-                    // can be data lost of previous wyieldWindow!
+                    // ignore interrupt - it is raw thread body. Previous item is not lost.
+                    putStop(null);
                 } catch (Throwable e) {
-                    synchronized (WAIT_OBJECT) {
-                        while (yieldWindow!=WAIT_OBJECT) try {
-                            WAIT_OBJECT.wait();
-                        } catch (InterruptedException ei) {
-                            // ignore interrupt - it is raw thread body on exit status.
-                        }
-                        nextErr = e;
-                        YieldIterator.this.yieldWindow=STOP_OBJECT;
-                        WAIT_OBJECT.notifyAll();
-                    }
+                    GeneratorScope s = YieldIterator.this.scope;
+                    if (s!=null) s.failed(YieldIterator.this, e); // before putStop(), it wait consumer
+                    putStop(e);
+                } finally {
+                    GeneratorScope s = YieldIterator.this.scope;
+                    if (s!=null) s.finished(YieldIterator.this);
                 }
             }
         };
-        generator.setDaemon(true);
-        start();//todo when should start? Not in constructor.
+        generator = scope!=null ? scope.newThread(body) : GeneratorThreads.newThread(body, threadName, startPolicy);
+        if (!generator.isAlive()) generator.setDaemon(true); // spare thread is started daemon
+        leakRecord = GeneratorLeakDetector.track(this, generator);
+        if (scope!=null) scope.add(this);
+        if (startPolicy.isEager()) launch();
     }
     
+    /**
+     * Wait till consumer take last item and set stop marker. Call from generator thread on exit.
+     * @param e error of generator or null
+     */
+    private void putStop(Throwable e) {
+        synchronized (WAIT_OBJECT) {
+            while (yieldWindow!=WAIT_OBJECT && yieldWindow!=STOP_OBJECT) try {
+                WAIT_OBJECT.wait();
+            } catch (InterruptedException ei) {
+                // ignore interrupt - it is raw thread body on exit status. close() set stop marker.
+            }
+            if (yieldWindow==STOP_OBJECT) return; // closed
+            ChunkBuffer c = chunker;
+            Object rest = c!=null ? c.takePartial() : null;
+            if (rest!=null) { // hand last not full chunk
+                yieldWindow = rest;
+                WAIT_OBJECT.notifyAll();
+                while (yieldWindow!=WAIT_OBJECT && yieldWindow!=STOP_OBJECT) try {
+                    WAIT_OBJECT.wait();
+                } catch (InterruptedException ei) {
+                    // ignore interrupt - it is raw thread body on exit status. close() set stop marker.
+                }
+                if (yieldWindow==STOP_OBJECT) return; // closed
+            }
+            nextErr = e;
+            yieldWindow=STOP_OBJECT;
+            WAIT_OBJECT.notifyAll();
+        }
+    }
+
+    /**
+     * Start generator thread, for StartPolicy.MANUAL. Repeated call or call after close() is ignored.
+     */
+    public void launch() {
+        if (started) return;
+        synchronized (WAIT_OBJECT) {
+            if (started || closed) return;
+            started = true;
+        }
+        start();
+    }
+
+    /**
+     * Start generator thread, called once by launch(). Subclass can override it for delay start and call super.start() later.
+     */
     protected void start() {
-        generator.start();
+        GeneratorThreads.start(generator);
+    }
+
+    /**
+     * Start generator thread on first read for StartPolicy.LAZY.
+     */
+    protected void ensureStarted() {
+        if (closed) return; // yieldWindow has stop marker
+        if (startPolicy==StartPolicy.MANUAL) throw new IllegalStateException("Generator is not started, call launch() before read");
+        launch();
+    }
+
+    /**
+     * Lockstep: wait till consumer ask next item. Call from generator thread.
+     */
+    private void awaitDemand() throws InterruptedException {
+        synchronized (WAIT_OBJECT) {
+            while (!demand && yieldWindow!=STOP_OBJECT) WAIT_OBJECT.wait();
+            demand = false;
+        }
     }
     
     /**
@@ -81,91 +218,465 @@ public abstract class YieldIterator<T> implements Iterator<T>, Closeable {
      */
     protected abstract void generator() throws InterruptedException;
     
+    /**
+     * @throws InterruptedException when iterator is closed, also when generator ignore previous interrupt
+     */
     protected void yield(T item) throws InterruptedException {
+        Object handoff = item;
         synchronized (WAIT_OBJECT) {
-            if (yieldWindow==STOP_OBJECT) throw new IllegalStateException("Iterator closed");
-            if (yieldWindow!=WAIT_OBJECT) {
-                // wait till other thread take
-                WAIT_OBJECT.wait();
-                if (!(yieldWindow==WAIT_OBJECT || yieldWindow==STOP_OBJECT)) {
-                    throw new IllegalStateException("Exchange error - yieldWindow is not empty");// never
-                }
+            ChunkBuffer c = chunker;
+            if (c!=null) { // collect chunk, consumer does not wait each item
+                if (yieldWindow==STOP_OBJECT) throw new InterruptedException("Iterator closed");
+                handoff = c.add(item);
+                if (handoff==null) return;
+            }
+            // wait till other thread take. Loop: lockstep demand also notify WAIT_OBJECT
+            while (yieldWindow!=WAIT_OBJECT && yieldWindow!=STOP_OBJECT) WAIT_OBJECT.wait();
+            if (yieldWindow==STOP_OBJECT) throw new InterruptedException("Iterator closed");
+            if (skipCount>0 && c==null) {
+                skipCount--;
+                return;
             }
-            yieldWindow = item;
+            yieldWindow = handoff;
+            demand = false; // this item is answer to consumer demand
             WAIT_OBJECT.notify();
         }
+        if (lockstep) awaitDemand();
+    }
+
+
+    /**
+     * Yield all items of source, as python "yield from". Source is not read by generator thread:
+     * it is handed to consumer and consumer read items direct from it, generator wait till source is drained.
+     * Source should not be changed till method return. Nested generator (YieldIterator, YieldIteratorQueueImpl) is closed when this iterator is closed.
+     * @throws InterruptedException when iterator is closed
+     * @throws RuntimeException or Error - exception of source on consumer read, generator can catch it
+     */
+    protected void yieldFrom(Iterator<? extends T> source) throws InterruptedException {
+        if (chunker!=null) { // items go to chunk
+            while (source.hasNext()) this.yield(source.next());
+            return;
+        }
+        DelegateSource d = new DelegateSource(source);
+        synchronized (WAIT_OBJECT) {
+            while (yieldWindow!=WAIT_OBJECT && yieldWindow!=STOP_OBJECT) WAIT_OBJECT.wait();
+            if (yieldWindow==STOP_OBJECT) throw new InterruptedException("Iterator closed");
+            while (skipCount>0 && source.hasNext()) { // skip on generator thread
+                source.next();
+                skipCount--;
+            }
+            yieldWindow = d;
+            delegate = d;
+            demand = false; // this source is answer to consumer demand
+            WAIT_OBJECT.notifyAll();
+        }
+        try {
+            d.awaitDrained();
+        } finally {
+            delegate = null;
+        }
+        if (closed) throw new InterruptedException("Iterator closed");
+        if (lockstep) awaitDemand();
+    }
+
+    /**
+     * yieldFrom(source.iterator())
+     */
+    protected void yieldFrom(Iterable<? extends T> source) throws InterruptedException {
+        yieldFrom(source.iterator());
+    }
+
+    /**
+     * yieldFrom(source.iterator()), stream is not closed.
+     */
+    protected void yieldFrom(Stream<? extends T> source) throws InterruptedException {
+        yieldFrom(source.iterator());
+    }
+
+    /**
+     * Skip next n items. Item in yieldWindow is dropped now, other items are dropped by generator thread in yield()
+     * without exchange with consumer. If generator has less items sequence just ends.
+     * @param n count of items for skip
+     */
+    public void skip(long n) {
+        if (n<0) throw new IllegalArgumentException("Negative skip: "+n);
+        if (n==0) return;
+        synchronized (WAIT_OBJECT) {
+            if (takeCached()!=NOT_CACHED && --n==0) return;
+            if (yieldWindow==STOP_OBJECT) return;
+            if (yieldWindow instanceof DelegateSource) { // skip in source of yieldFrom()
+                DelegateSource d = (DelegateSource)yieldWindow;
+                while (n>0 && d.takeItem()!=DelegateSource.DRAINED) n--;
+                if (n==0) return;
+                yieldWindow = WAIT_OBJECT; // source is drained, generator continue
+                WAIT_OBJECT.notifyAll();
+            } else if (yieldWindow!=WAIT_OBJECT) { // drop ready item
+                yieldWindow = WAIT_OBJECT;
+                n--;
+                WAIT_OBJECT.notifyAll();
+            }
+            skipCount += n;
+        }
     }
 
+    /**
+     * Hook for generator what can jump ahead itself (for example seek cursor): take count of next items what consumer skip.
+     * Generator should not yield these items. Call from generator thread.
+     * @return count of items for skip, 0 when nothing is skipped
+     */
+    protected long claimSkip() {
+        synchronized (WAIT_OBJECT) {
+            long n = skipCount;
+            skipCount = 0;
+            return n;
+        }
+    }
     
     @Override
     public boolean hasNext() {
+        if (cached!=NOT_CACHED) return true;
+        if (!started) ensureStarted();
+        synchronized (WAIT_OBJECT) {
+            if (cached!=NOT_CACHED) return true;
+            try {
+                if (!awaitWindow(deadlineLeft())) throw deadlineExceeded();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Can not wait iterator source", ex);
+            }
+            return cacheWindow();
+        }
+    }
+
+    /**
+     * hasNext() with timeout.
+     * @throws TimeoutException when generator has not produce item or finished in time
+     * @throws RuntimeException with TimeoutException when iterator deadline exceeded
+     */
+    public boolean hasNext(Duration timeout) throws TimeoutException {
+        if (cached!=NOT_CACHED) return true;
+        if (!started) ensureStarted();
+        long nanos = Math.max(0L, timeout.toNanos()); // negative is not wait, as BlockingQueue.poll()
+        long left = deadlineLeft();
+        boolean byDeadline = left>=0 && left<=nanos;
         synchronized (WAIT_OBJECT) {
+            if (cached!=NOT_CACHED) return true;
             try {
-                while (yieldWindow==WAIT_OBJECT) WAIT_OBJECT.wait();
+                if (!awaitWindow(byDeadline ? left : nanos)) {
+                    if (byDeadline) throw deadlineExceeded();
+                    throw new TimeoutException("Generator has not produce item in "+timeout);
+                }
             } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
                 throw new RuntimeException("Can not wait iterator source", ex);
             }
-            if (yieldWindow==STOP_OBJECT && nextErr==null) return false;
-            return true;
+            return cacheWindow();
         }
     }
 
+    /**
+     * Move ready item from yieldWindow to consumer slot and release generator. Call under WAIT_OBJECT after awaitWindow().
+     * Stop marker and source of yieldFrom() stay in yieldWindow.
+     * @return result of hasNext()
+     */
+    private boolean cacheWindow() {
+        if (yieldWindow==STOP_OBJECT) return nextErr!=null;
+        if (yieldWindow instanceof DelegateSource || cached!=NOT_CACHED) return true; // other reader fill slot while wait
+        cached = yieldWindow;
+        yieldWindow = WAIT_OBJECT;
+        WAIT_OBJECT.notifyAll();
+        return true;
+    }
+
+    /**
+     * Take item from consumer slot, without lock.
+     * @return item or NOT_CACHED
+     */
+    private Object takeCached() {
+        Object item = cached;
+        if (item==NOT_CACHED || !CACHED.compareAndSet(this, item, NOT_CACHED)) return NOT_CACHED; // other reader take it
+        return item;
+    }
+
     /**
      * 
      * @throws NoSuchElementException when no more element
      * @throws RuntimeException with InterruptedException if thread was interrupt. Interrupt flag has restored correctly.
+     * @throws RuntimeException with TimeoutException when iterator deadline exceeded
      * @throws Error or RuntimeException - any exception from generator
      * @return next generated object
      */
     @Override
     public T next() {
+        Object item = takeCached();
+        if (item!=NOT_CACHED) return (T) item;
+        if (!started) ensureStarted();
         synchronized (WAIT_OBJECT) {
-            while (yieldWindow==WAIT_OBJECT) {
-                try {
-                    WAIT_OBJECT.wait();
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException("Can not wait iterator source", ex);
+            item = takeCached(); // hasNext() of other reader
+            if (item!=NOT_CACHED) return (T) item;
+            try {
+                if (!awaitWindow(deadlineLeft())) throw deadlineExceeded();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Can not wait iterator source", ex);
+            }
+            return takeWindow();
+        }
+    }
+
+    /**
+     * next() with timeout. Do not yield null item if you use it.
+     * @return next generated object or null when generator has not produce item in time
+     * @throws NoSuchElementException when no more element
+     * @throws RuntimeException with TimeoutException when iterator deadline exceeded
+     * @throws Error or RuntimeException - any exception from generator
+     */
+    public T poll(long timeout, TimeUnit unit) {
+        Object item = takeCached();
+        if (item!=NOT_CACHED) return (T) item;
+        if (!started) ensureStarted();
+        long nanos = Math.max(0L, unit.toNanos(timeout)); // negative is not wait, as BlockingQueue.poll()
+        long left = deadlineLeft();
+        boolean byDeadline = left>=0 && left<=nanos;
+        synchronized (WAIT_OBJECT) {
+            item = takeCached();
+            if (item!=NOT_CACHED) return (T) item;
+            try {
+                if (!awaitWindow(byDeadline ? left : nanos)) {
+                    if (byDeadline) throw deadlineExceeded();
+                    return null;
                 }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Can not wait iterator source", ex);
+            }
+            return takeWindow();
+        }
+    }
+
+    /**
+     * Next item without take it: next() return same item.
+     * @throws NoSuchElementException when no more element
+     * @throws RuntimeException with TimeoutException when iterator deadline exceeded
+     * @throws Error or RuntimeException - any exception from generator, next() throw it again
+     * @return next generated object
+     */
+    public T peek() {
+        if (!started) ensureStarted();
+        synchronized (WAIT_OBJECT) {
+            Object item = cached;
+            if (item!=NOT_CACHED) return (T) item;
+            try {
+                if (!awaitWindow(deadlineLeft())) throw deadlineExceeded();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Can not wait iterator source", ex);
             }
             if (yieldWindow==STOP_OBJECT) {
-                if (nextErr!=null) { // throw exception from generator
-                    Throwable doThrow = nextErr;
-                    nextErr = null; // throw once
-                    if (doThrow instanceof RuntimeException) throw (RuntimeException) doThrow;
-                    if (doThrow instanceof Error) throw (Error) doThrow;
-                    throw new RuntimeException("Iteratorthread stop with error", doThrow); // never
-                } else
-                    throw new NoSuchElementException();
-            }
-            T take = (T)yieldWindow;
-            yieldWindow=WAIT_OBJECT;
+                Throwable err = nextErr;
+                if (err instanceof RuntimeException) throw (RuntimeException) err;
+                if (err instanceof Error) throw (Error) err;
+                throw new NoSuchElementException();
+            }
+            if (yieldWindow instanceof DelegateSource) return (T)((DelegateSource)yieldWindow).peekItem(); // not drained after awaitWindow()
+            return (T)yieldWindow;
+        }
+    }
+
+    /**
+     * Item k ahead without take it. There are only one yieldWindow, so only k=0 is supported.
+     * Use YieldIteratorQueueImpl for more lookahead.
+     * @param k 0 - next item
+     */
+    public T peek(int k) {
+        if (k!=0) throw new IllegalArgumentException("Lookahead "+k+" is over limit 1, use YieldIteratorQueueImpl");
+        return peek();
+    }
+
+    /**
+     * View what read chunks of items: generator collect up to size items and hand them by one exchange.
+     * Not full chunk is handed when first item of it wait more that maxWait and at the end.
+     * Call it before generator produce items (StartPolicy.LAZY or MANUAL), else produced items are returned as chunks of one item.
+     * Do not read this iterator after it, read view only.
+     * @param size max items in chunk
+     * @param maxWait max wait of first item in chunk, null - wait till chunk is full
+     */
+    public Iterator<List<T>> chunked(int size, Duration maxWait) {
+        if (maxWait!=null && (maxWait.isZero() || maxWait.isNegative())) throw new IllegalArgumentException("Max wait should be positive: "+maxWait);
+        return startChunking(new ChunkBuffer(size, size, maxWait==null ? -1L : maxWait.toNanos(), true));
+    }
+
+    /**
+     * View what read windows of items: tumbling when step==size, sliding when step&lt;size.
+     * Generator collect window and hand it by one exchange. Not full window at the end is dropped.
+     * Call it before generator produce items (StartPolicy.LAZY or MANUAL), see chunked().
+     * @param size items in window
+     * @param step items between window start
+     */
+    public Iterator<List<T>> windowed(int size, int step) {
+        return startChunking(new ChunkBuffer(size, step, -1L, false));
+    }
+
+    private Iterator<List<T>> startChunking(ChunkBuffer buffer) {
+        synchronized (WAIT_OBJECT) {
+            if (chunker!=null) throw new IllegalStateException("Iterator is already chunked");
+            chunker = buffer;
+        }
+        return new Iterator<List<T>>() {
+            @Override
+            public boolean hasNext() {
+                if (!started) ensureStarted();
+                synchronized (WAIT_OBJECT) {
+                    if (awaitChunk()) return true;
+                    return yieldWindow!=STOP_OBJECT || nextErr!=null;
+                }
+            }
+
+            @Override
+            public List<T> next() {
+                if (!started) ensureStarted();
+                synchronized (WAIT_OBJECT) {
+                    if (awaitChunk()) return (List<T>) buffer.takePartial();
+                    Object item = takeWindow();
+                    return item instanceof ChunkBuffer.Chunk ? (List<T>) item : Collections.singletonList((T) item);
+                }
+            }
+        };
+    }
+
+    /**
+     * Wait chunk in yieldWindow or not full chunk what wait more that maxWait. Call under WAIT_OBJECT.
+     * @return true when not full chunk should be taken
+     */
+    private boolean awaitChunk() {
+        try {
+            while (true) {
+                long delay = chunker.flushDelay(System.nanoTime()); // maxWait when chunk is empty: check again
+                if (delay==0 && yieldWindow==WAIT_OBJECT) return true;
+                if (awaitWindow(delay)) return false;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Can not wait iterator source", ex);
+        }
+    }
+
+    /**
+     * Wait while yieldWindow is empty. Call under WAIT_OBJECT.
+     * @param timeoutNanos negative for wait without timeout
+     * @return false on timeout
+     */
+    private boolean awaitWindow(long timeoutNanos) throws InterruptedException {
+        long end = timeoutNanos>0 ? System.nanoTime()+timeoutNanos : 0L;
+        while (true) {
+            while (yieldWindow==WAIT_OBJECT) {
+                if (lockstep && !demand) {
+                    demand = true;
+                    WAIT_OBJECT.notifyAll();
+                }
+                if (timeoutNanos<0) {
+                    PoolBlocking.wait(WAIT_OBJECT, 0L);
+                } else {
+                    long left = timeoutNanos>0 ? end-System.nanoTime() : 0L;
+                    if (left<=0) return false;
+                    PoolBlocking.wait(WAIT_OBJECT, left);
+                }
+            }
+            if (!(yieldWindow instanceof DelegateSource)) return true;
+            // source of yieldFrom() is read by consumer, nested generator is waited till same end
+            long left = timeoutNanos<0 ? -1L : timeoutNanos>0 ? Math.max(0L, end-System.nanoTime()) : 0L;
+            Object item = ((DelegateSource)yieldWindow).peekItem(left);
+            if (item==DelegateSource.TIMED_OUT) return false;
+            if (item!=DelegateSource.DRAINED) return true;
+            yieldWindow = WAIT_OBJECT; // source is drained or failed, generator continue
             WAIT_OBJECT.notifyAll();
-            return take;
         }
     }
+
+    /**
+     * Take item from yieldWindow, it should be not empty. Call under WAIT_OBJECT.
+     */
+    private T takeWindow() {
+        if (yieldWindow==STOP_OBJECT) {
+            if (nextErr!=null) { // throw exception from generator
+                Throwable doThrow = nextErr;
+                nextErr = null; // throw once
+                if (doThrow instanceof RuntimeException) throw (RuntimeException) doThrow;
+                if (doThrow instanceof Error) throw (Error) doThrow;
+                throw new RuntimeException("Iteratorthread stop with error", doThrow); // never
+            } else
+                throw new NoSuchElementException();
+        }
+        if (yieldWindow instanceof DelegateSource) return (T)((DelegateSource)yieldWindow).takeItem(); // not drained after awaitWindow()
+        T take = (T)yieldWindow;
+        yieldWindow=WAIT_OBJECT;
+        WAIT_OBJECT.notifyAll();
+        return take;
+    }
+
+    /**
+     * Set deadline for this iterator: after it hasNext(), next() and poll() does not wait generator
+     * and throw RuntimeException with TimeoutException. Item what is ready can be taken after deadline.
+     * @param timeFromNow time till deadline, null for remove deadline
+     */
+    public void setDeadline(Duration timeFromNow) {
+        if (timeFromNow==null) {
+            hasDeadline = false;
+        } else {
+            deadline = System.nanoTime()+timeFromNow.toNanos();
+            hasDeadline = true;
+        }
+    }
+
+    /**
+     * @return nanos till deadline (0 when it is expired) or -1 when deadline is not set
+     */
+    protected long deadlineLeft() {
+        if (!hasDeadline) return -1L;
+        return Math.max(0L, deadline-System.nanoTime());
+    }
+
+    protected RuntimeException deadlineExceeded() {
+        return new RuntimeException("Iterator deadline exceeded", new TimeoutException("Generator has not produce item till deadline"));
+    }
     
     /**
-     * Ensure close thread.
-     * Last element from next() will be removed ater call close().
+     * Ensure close thread, does not wait it.
+     * Last element from next() will be removed ater call close(). Consumer what wait in hasNext()/next() is wake up
+     * and has no more items.
+     * 
+     * There are no finalize(): running generator thread reference this iterator, so it never be collected before close().
+     * Use GeneratorLeakDetector for find not closed generators.
      */
     @Override
     public void close() {
+        GeneratorLeakDetector.closed(leakRecord);
+        DelegateSource d = delegate;
+        if (d!=null) d.cancel(); // wake consumer what wait nested generator
+        synchronized (WAIT_OBJECT) {
+            closed = true;
+            yieldWindow = STOP_OBJECT; // drop not taken item
+            cached = NOT_CACHED;
+            nextErr = cancelCause; // null: consumer has no more items
+            WAIT_OBJECT.notifyAll();
+        }
         if (generator.isAlive()) {
             generator.interrupt();
             //System.out.print(getClass().getSimpleName()+" thead success closing!"); // debug
         }
     }
-    
+
     /**
-     * Warning: can be not work. See java https://openjdk.java.net/jeps/421
-     * Recomended execute <code>close()</code> or reaadall sequence from iterator.
-     * @throws Throwable 
+     * close() and wait generator thread exit.
+     * @return false when generator thread is still alive after timeout (generator ignore interrupt, for example blocking IO)
      */
-    @Override
-    protected void finalize() throws Throwable{
+    public boolean close(Duration timeout) {
         close();
-        super.finalize();
+        try {
+            generator.join(Math.max(1L, timeout.toMillis()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return !generator.isAlive();
     }
 }
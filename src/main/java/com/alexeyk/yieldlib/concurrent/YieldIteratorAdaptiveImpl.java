@@ -0,0 +1,469 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+
+/**
+ * This abstract class provide Iterator with python-like yield style implementation.
+ *
+ * Implementation what select handoff mode at runtime. Generator and consumer measure own time per item
+ * (without waiting of other side) and consumer switch mode:
+ * <ul>
+ * <li>BATCHED: both side is cheap per item, handoff cost is important. Items are handed by batch, one lock and wakeup per batch.</li>
+ * <li>QUEUE: generator item is expensive, generator is bottleneck. Each item is handed at once, small queue let generator run ahead.</li>
+ * <li>LOCKSTEP: consumer item is expensive, consumer is bottleneck. Prefetch only hold memory, generator is ahead by one item (as YieldIterator).</li>
+ * </ul>
+ * Waiting side spin before park when other side expected soon and there are more that one CPU.
+ * Mode is switched when same decision is made twice, see <code>getMode()</code> and other getters.
+ *
+ * In BATCHED mode item is in generator batch till full batch or generator end. When consumer wait more that 1 ms
+ * it take not full batch itself, so tail of burst is not stranded while generator stall between yield() (network read,
+ * wait reply of consumer), and generator hand not full batch on next yield(). Generator what become slow is switched to QUEUE mode after some items.
+ *
+ * Operation hasNext() and next() is thread-safe, but not botch - it is 2 atomic operation.
+ *
+ * Implementation should override <code>generator()</code> when call many times method yield(T).
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public abstract class YieldIteratorAdaptiveImpl<T> implements Iterator<T>, Closeable {
+    /**
+     * Handoff mode between generator and consumer.
+     */
+    public enum Mode {
+        /** One item in handoff, generator is ahead by one item. */
+        LOCKSTEP,
+        /** Item is handed at once, generator can be ahead by QUEUE_CAPACITY items. */
+        QUEUE,
+        /** Items are handed by batch. */
+        BATCHED
+    }
+
+    /** Item over this time is expensive: handoff cost is not important. */
+    protected static final long EXPENSIVE_NANOS = 20_000L;
+    /** Batch should be collected by generator not longer that this time. */
+    protected static final long BATCH_LATENCY_NANOS = 200_000L;
+    /** Spin instead of park when other side is expected not longer that this time. */
+    protected static final long SPIN_NANOS = 20_000L;
+    protected static final int SPIN_TRIES = 2_000;
+    protected static final int MAX_BATCH = 256;
+    protected static final int QUEUE_CAPACITY = 16;
+    /** Consumer wait this time before ask not full batch. */
+    protected static final long BATCH_WAIT_MILLIS = 1L;
+    /** Adapt after this count of taken items or this time. */
+    protected static final int ADAPT_ITEMS = 64;
+    protected static final long ADAPT_NANOS = 10_000_000L;
+    protected static final boolean MULTI_CPU = Runtime.getRuntime().availableProcessors()>1;
+    private static final Object[] EMPTY = new Object[0];
+    private static final AtomicIntegerFieldUpdater<YieldIteratorAdaptiveImpl> PENDING_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(YieldIteratorAdaptiveImpl.class, "pendingCount");
+
+    protected final Thread generator;
+    protected final Object LOCK = new Object(); // ring and waiting
+    protected final Object CONSUMER_LOCK = new Object(); // only one consumer thread take from ring
+    protected final StartPolicy startPolicy;
+    protected final boolean adaptive;
+    // guarded by LOCK:
+    protected Object[] ring = EMPTY; // grow to capacity on first handoff
+    protected int head;
+    protected volatile int count; // read without lock by spin
+    protected volatile boolean finished; // generator end
+    protected Throwable error; // generator error after items
+    protected boolean producerWait;
+    protected volatile boolean consumerWait;
+    protected volatile boolean hurry; // consumer ask not full batch
+    // generator append without lock, consumer what wait take them under LOCK (see movePending()):
+    protected volatile Object[] pending = EMPTY; // grow to batchSize when it is empty
+    protected volatile int pendingCount;
+    // generator thread only:
+    protected long producerMark;
+    // guarded by CONSUMER_LOCK:
+    protected Object[] taken = EMPTY; // grow to ring size
+    protected int takenPos, takenCount;
+    protected Throwable nextErr;
+    protected long consumerMark, adaptMark;
+    protected int lastTaken, itemsSinceAdapt;
+    protected Mode proposed;
+    // current mode, changed under LOCK:
+    protected volatile Mode mode;
+    protected volatile int batchSize, capacity;
+    protected volatile boolean spinWait;
+    protected volatile int modeSwitches;
+    // average time per item without waiting, -1 - unknown
+    protected volatile long producerNanos = -1L, consumerNanos = -1L;
+    protected volatile boolean started;
+    protected volatile boolean closed;
+    protected final Object leakRecord; // GeneratorLeakDetector, null when not sampled
+
+    public YieldIteratorAdaptiveImpl() {
+        this(StartPolicy.EAGER, Mode.QUEUE, true);
+    }
+
+    public YieldIteratorAdaptiveImpl(StartPolicy startPolicy) {
+        this(startPolicy, Mode.QUEUE, true);
+    }
+
+    /**
+     * @param startPolicy when start generator thread
+     * @param initial mode before first measure
+     * @param adaptive false - keep initial mode
+     */
+    public YieldIteratorAdaptiveImpl(StartPolicy startPolicy, Mode initial, boolean adaptive) {
+        Objects.requireNonNull(startPolicy);
+        Objects.requireNonNull(initial);
+        this.startPolicy = startPolicy;
+        this.adaptive = adaptive;
+        setMode(initial, initial==Mode.BATCHED ? MAX_BATCH/4 : 1, false);
+        String threadName="iterator-generator-"+getClass().getSimpleName();
+        Runnable body = new Runnable() {
+            @Override
+            public void run() {
+                Throwable err = null;
+                try {
+                    producerMark = System.nanoTime();
+                    YieldIteratorAdaptiveImpl.this.generator();
+                } catch (InterruptedException ei) {
+                    // ignore interrupt - it is raw thread body.
+                } catch (Throwable e) {
+                    err = e;
+                }
+                if (closed) return;
+                if (pendingCount>0) try {
+                    flush();
+                } catch (InterruptedException ei) {
+                    // ignore interrupt - it is raw thread body on exit status.
+                }
+                synchronized (LOCK) {
+                    error = err;
+                    finished = true;
+                    LOCK.notifyAll();
+                }
+            }
+        };
+        generator = GeneratorThreads.newThread(body, threadName, startPolicy);
+        if (!generator.isAlive()) generator.setDaemon(true); // spare thread is started daemon
+        leakRecord = GeneratorLeakDetector.track(this, generator);
+        if (startPolicy.isEager()) launch();
+    }
+
+    /**
+     * Start generator thread, for StartPolicy.MANUAL. Repeated call or call after close() is ignored.
+     */
+    public void launch() {
+        if (started) return;
+        synchronized (this) {
+            if (started || closed) return;
+            started = true;
+        }
+        start();
+    }
+
+    /**
+     * Start generator thread, called once by launch(). Subclass can override it for delay start and call super.start() later.
+     */
+    protected void start() {
+        GeneratorThreads.start(generator);
+    }
+
+    /**
+     * Start generator thread on first read for StartPolicy.LAZY.
+     */
+    protected void ensureStarted() {
+        if (closed) return;
+        if (startPolicy==StartPolicy.MANUAL) throw new IllegalStateException("Generator is not started, call launch() before read");
+        launch();
+    }
+
+    /**
+     * Generator for put yield(X).
+     * @throws InterruptedException
+     */
+    protected abstract void generator() throws InterruptedException;
+
+    /**
+     * @throws InterruptedException when iterator is closed
+     */
+    protected void yield(T item) throws InterruptedException {
+        if (closed) throw new InterruptedException("Iterator closed");
+        if (pendingCount>=pending.length) {
+            if (pendingCount>0) flush();
+            if (pending.length<batchSize) pending = new Object[batchSize]; // replace only empty, consumer can read it
+        }
+        while (true) { // consumer can take pending items meanwhile
+            int k = pendingCount;
+            Object[] p = pending;
+            p[k] = item;
+            if (PENDING_COUNT.compareAndSet(this, k, k+1)) break;
+            p[k] = null; // pending items are taken, append to begin
+        }
+        if (pendingCount>=batchSize || hurry) flush();
+    }
+
+    /**
+     * Generator: hand pending items to ring, wait free space.
+     */
+    private void flush() throws InterruptedException {
+        int n = pendingCount;
+        if (n>0) producerNanos = average(producerNanos, (System.nanoTime()-producerMark)/n);
+        if (spinWait) for (int i=0;i<SPIN_TRIES && count>0 && count+n>capacity && !closed;i++) Thread.onSpinWait();
+        synchronized (LOCK) {
+            while (count>0 && count+pendingCount>capacity) { // empty ring take batch bigger that capacity after mode change
+                if (closed) throw new InterruptedException("Iterator closed");
+                producerWait = true;
+                LOCK.wait();
+            }
+            producerWait = false;
+            if (closed) throw new InterruptedException("Iterator closed");
+            if (movePending()>0 && consumerWait) LOCK.notifyAll();
+        }
+        producerMark = System.nanoTime();
+    }
+
+    /**
+     * Move pending items to ring: by generator on flush or by consumer what wait items. Call under LOCK.
+     * Generator can append items meanwhile, they are moved too.
+     * @return count of moved items
+     */
+    private int movePending() {
+        int moved = 0;
+        while (true) {
+            int n = pendingCount;
+            Object[] p = pending; // read after count: it is replaced only when count is 0
+            if (n==moved) {
+                if (PENDING_COUNT.compareAndSet(this, n, 0)) return n;
+                continue;
+            }
+            if (ring.length<count+n-moved) growRing(Math.max(count+n-moved, capacity));
+            int tail = head+count;
+            for (int i=moved;i<n;i++) {
+                ring[(tail+i-moved)%ring.length] = p[i];
+                p[i] = null;
+            }
+            count += n-moved;
+            moved = n;
+        }
+    }
+
+    /**
+     * Replace ring by bigger one, items are moved to begin. Call under LOCK.
+     */
+    private void growRing(int size) {
+        Object[] bigger = new Object[size];
+        for (int i=0;i<count;i++) bigger[i] = ring[(head+i)%ring.length];
+        ring = bigger;
+        head = 0;
+    }
+
+    /**
+     * Consumer: take all items from ring to own buffer. Call under CONSUMER_LOCK.
+     * @return false when no more items
+     */
+    private boolean fill() {
+        if (closed) { // closed iterator has no more items
+            Arrays.fill(taken, null);
+            takenPos = takenCount = 0;
+            nextErr = null;
+            return false;
+        }
+        if (takenPos<takenCount) return true;
+        long now = System.nanoTime();
+        if (lastTaken>0) consumerNanos = average(consumerNanos, (now-consumerMark)/lastTaken);
+        if (spinWait) for (int i=0;i<SPIN_TRIES && count==0 && !finished && !closed;i++) Thread.onSpinWait();
+        int n;
+        synchronized (LOCK) {
+            long waitMillis = BATCH_WAIT_MILLIS;
+            try {
+                while (count==0 && !finished && !closed) {
+                    consumerWait = true;
+                    PoolBlocking.wait(LOCK, waitMillis*1_000_000L);
+                    if (waitMillis>0 && count==0 && !closed) {
+                        waitMillis = 0L;
+                        hurry = true; // generator hand next item at once
+                        movePending(); // items what generator yield before it stall
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Can not wait iterator source", ie);
+            } finally {
+                consumerWait = false;
+                hurry = false;
+            }
+            if (closed) return false;
+            n = count;
+            if (taken.length<n) taken = new Object[ring.length];
+            for (int i=0;i<n;i++) {
+                int pos = (head+i)%ring.length;
+                taken[i] = ring[pos];
+                ring[pos] = null;
+            }
+            head = (head+n)%ring.length;
+            count = 0;
+            if (n==0 && error!=null) { // finished with error
+                nextErr = error;
+                error = null;
+            }
+            if (producerWait) LOCK.notifyAll();
+        }
+        takenPos = 0;
+        takenCount = n;
+        lastTaken = n;
+        itemsSinceAdapt += n;
+        consumerMark = System.nanoTime();
+        if (adaptive && (itemsSinceAdapt>=ADAPT_ITEMS || consumerMark-adaptMark>=ADAPT_NANOS)) adapt();
+        return n>0;
+    }
+
+    /**
+     * Select mode by measured time per item. Call under CONSUMER_LOCK.
+     */
+    private void adapt() {
+        itemsSinceAdapt = 0;
+        adaptMark = consumerMark;
+        long p = producerNanos, c = consumerNanos;
+        if (p<0 || c<0) return;
+        Mode next;
+        if (p<EXPENSIVE_NANOS && c<EXPENSIVE_NANOS) next = Mode.BATCHED;
+        else if (c>p) next = Mode.LOCKSTEP;
+        else next = Mode.QUEUE;
+        if (next!=proposed) { // wait same decision twice
+            proposed = next;
+            return;
+        }
+        int batch = 1;
+        if (next==Mode.BATCHED) batch = (int)Math.max(2L, Math.min(MAX_BATCH, BATCH_LATENCY_NANOS/Math.max(1L, p)));
+        setMode(next, batch, MULTI_CPU && Math.max(p, c)*batch<SPIN_NANOS);
+    }
+
+    private void setMode(Mode next, int batch, boolean spin) {
+        synchronized (LOCK) {
+            if (mode!=null && mode!=next) modeSwitches++;
+            mode = next;
+            batchSize = batch;
+            capacity = next==Mode.QUEUE ? QUEUE_CAPACITY : (next==Mode.BATCHED ? 2*batch : 1);
+            spinWait = spin;
+            if (producerWait) LOCK.notifyAll();
+        }
+    }
+
+    private static long average(long avg, long sample) {
+        return avg<0 ? sample : avg+(sample-avg)/8;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!started) ensureStarted();
+        synchronized (CONSUMER_LOCK) {
+            return fill() || nextErr!=null;
+        }
+    }
+
+    /**
+     * @throws NoSuchElementException when no more element
+     * @throws RuntimeException with InterruptedException if thread was interrupt. Interrupt flag has restored correctly.
+     * @throws Error or RuntimeException - any exception from generator
+     * @return next generated object
+     */
+    @Override
+    public T next() {
+        if (!started) ensureStarted();
+        synchronized (CONSUMER_LOCK) {
+            if (!fill()) {
+                if (nextErr!=null) { // throw exception from generator
+                    Throwable doThrow = nextErr;
+                    nextErr = null; // throw once
+                    if (doThrow instanceof RuntimeException) throw (RuntimeException) doThrow;
+                    if (doThrow instanceof Error) throw (Error) doThrow;
+                    throw new RuntimeException("Iteratorthread stop with error", doThrow); // never
+                }
+                throw new NoSuchElementException();
+            }
+            T item = (T) taken[takenPos];
+            taken[takenPos++] = null; // for GC
+            return item;
+        }
+    }
+
+    /**
+     * @return current handoff mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return items in one handoff, 1 for LOCKSTEP and QUEUE
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return true when waiting side spin before park
+     */
+    public boolean isSpinWait() {
+        return spinWait;
+    }
+
+    /**
+     * @return count of mode change
+     */
+    public int getModeSwitches() {
+        return modeSwitches;
+    }
+
+    /**
+     * @return average generator time per item without waiting, -1 - not measured yet
+     */
+    public long getProducerNanosPerItem() {
+        return producerNanos;
+    }
+
+    /**
+     * @return average consumer time per item without waiting, -1 - not measured yet
+     */
+    public long getConsumerNanosPerItem() {
+        return consumerNanos;
+    }
+
+    /**
+     * Ensure close thread, does not wait it. Not read items are dropped.
+     * Consumer what wait in hasNext()/next() is wake up and has no more items.
+     */
+    @Override
+    public void close() {
+        GeneratorLeakDetector.closed(leakRecord);
+        closed = true;
+        synchronized (LOCK) {
+            Arrays.fill(ring, null);
+            count = 0;
+            LOCK.notifyAll();
+        }
+        if (generator.isAlive()) generator.interrupt();
+    }
+
+    /**
+     * close() and wait generator thread exit.
+     * @return false when generator thread is still alive after timeout
+     */
+    public boolean close(Duration timeout) {
+        close();
+        try {
+            generator.join(Math.max(1L, timeout.toMillis()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return !generator.isAlive();
+    }
+}
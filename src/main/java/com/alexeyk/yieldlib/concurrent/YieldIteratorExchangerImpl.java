@@ -0,0 +1,260 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.Exchanger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * This abstract class provide Iterator with python-like yield style implementation.
+ *
+ * Implementation via Exchanger with double buffering: generator fill one buffer while consumer read other,
+ * then they swap buffers. There are one synchronization per buffer, consumer read items from own buffer without lock.
+ * Backpressure is strict: generator can be ahead only by one buffer, it wait in exchange till consumer read own buffer.
+ * When consumer wait more that 1 ms, generator hand not full buffer on next yield(), so slow generator does not delay items much.
+ * But item is in generator buffer till next yield(), full buffer or generator end, so default bufferSize is 1: rendezvous per item,
+ * yielded item is never stranded while generator stall (network read, wait reply of consumer).
+ * Use bufferSize &gt; 1 for throughput only when generator does not block between yield().
+ *
+ * Operation hasNext() and next() is thread-safe, but not botch - it is 2 atomic operation.
+ *
+ * Implementation should override <code>generator()</code> when call many times method yield(T).
+ *
+ * (C) A.K. 2022
+ * @author A.K.
+ */
+public abstract class YieldIteratorExchangerImpl<T> implements Iterator<T>, Closeable {
+    private static final long CLOSE_CHECK_NANOS = 50_000_000L; // consumer check close() while wait exchange
+    private static final long FULL_WAIT_NANOS = 1_000_000L; // consumer wait full buffer before ask not full
+    private static final Buffer CLOSED = new Buffer(0); // last empty buffer
+    static {
+        CLOSED.last = true;
+    }
+
+    protected final Thread generator;
+    protected final Exchanger<Buffer> exchanger = new Exchanger<>();
+    protected final Object CONSUMER_LOCK = new Object(); // only one consumer thread in exchange
+    protected final StartPolicy startPolicy;
+    protected final int bufferSize;
+    protected Buffer produced; // generator thread only, allocated on launch()
+    protected Buffer consumed; // guarded by CONSUMER_LOCK, allocated on launch()
+    protected volatile boolean consumerWait; // generator hand not full buffer
+    protected volatile boolean started;
+    protected volatile boolean closed;
+    protected final Object leakRecord; // GeneratorLeakDetector, null when not sampled
+
+    /**
+     * Buffer what is swapped between generator and consumer.
+     */
+    protected static final class Buffer {
+        final Object[] items;
+        int count;
+        int pos; // consumer read position
+        boolean last; // generator finished, no more buffers
+        Throwable error; // generator error after items
+
+        Buffer(int size) {
+            items = new Object[size];
+        }
+    }
+
+    /**
+     * Rendezvous per item (bufferSize=1).
+     */
+    public YieldIteratorExchangerImpl() {
+        this(StartPolicy.EAGER, 1);
+    }
+
+    public YieldIteratorExchangerImpl(int bufferSize) {
+        this(StartPolicy.EAGER, bufferSize);
+    }
+
+    /**
+     * @param startPolicy when start generator thread
+     * @param bufferSize items in each of two buffers, more that 1 only for generator what does not block between yield()
+     */
+    public YieldIteratorExchangerImpl(StartPolicy startPolicy, int bufferSize) {
+        Objects.requireNonNull(startPolicy);
+        if (bufferSize<1) throw new IllegalArgumentException("Buffer size should be positive: "+bufferSize);
+        this.startPolicy = startPolicy;
+        this.bufferSize = bufferSize;
+        String threadName="iterator-generator-"+getClass().getSimpleName();
+        Runnable body = new Runnable() {
+            @Override
+            public void run() {
+                Throwable err = null;
+                try {
+                    YieldIteratorExchangerImpl.this.generator();
+                } catch (InterruptedException ei) {
+                    // ignore interrupt - it is raw thread body.
+                } catch (Throwable e) {
+                    err = e;
+                }
+                if (closed) return;
+                produced.last = true;
+                produced.error = err;
+                while (!closed) try {
+                    exchanger.exchange(produced); // last buffer
+                    return;
+                } catch (InterruptedException ei) {
+                    // ignore interrupt - it is raw thread body on exit status. Only close() can cancel it.
+                }
+            }
+        };
+        generator = GeneratorThreads.newThread(body, threadName, startPolicy);
+        if (!generator.isAlive()) generator.setDaemon(true); // spare thread is started daemon
+        leakRecord = GeneratorLeakDetector.track(this, generator);
+        if (startPolicy.isEager()) launch();
+    }
+
+    /**
+     * Start generator thread, for StartPolicy.MANUAL. Repeated call or call after close() is ignored.
+     */
+    public void launch() {
+        if (started) return;
+        synchronized (this) {
+            if (started || closed) return;
+            produced = new Buffer(bufferSize); // not started iterator has no buffers
+            consumed = new Buffer(bufferSize);
+            started = true;
+        }
+        start();
+    }
+
+    /**
+     * Start generator thread, called once by launch(). Subclass can override it for delay start and call super.start() later.
+     */
+    protected void start() {
+        GeneratorThreads.start(generator);
+    }
+
+    /**
+     * Start generator thread on first read for StartPolicy.LAZY.
+     */
+    protected void ensureStarted() {
+        if (closed) return;
+        if (startPolicy==StartPolicy.MANUAL) throw new IllegalStateException("Generator is not started, call launch() before read");
+        launch();
+    }
+
+    /**
+     * Generator for put yield(X).
+     * @throws InterruptedException
+     */
+    protected abstract void generator() throws InterruptedException;
+
+    /**
+     * @throws InterruptedException when iterator is closed
+     */
+    protected void yield(T item) throws InterruptedException {
+        if (closed) throw new InterruptedException("Iterator closed");
+        Buffer b = produced;
+        b.items[b.count++] = item;
+        if (b.count==bufferSize || consumerWait) {
+            Buffer empty = exchanger.exchange(b);
+            empty.count = 0;
+            empty.pos = 0;
+            produced = empty;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!started) ensureStarted();
+        synchronized (CONSUMER_LOCK) {
+            Buffer b = awaitBuffer();
+            return b.pos<b.count || b.error!=null;
+        }
+    }
+
+    /**
+     * @throws NoSuchElementException when no more element
+     * @throws RuntimeException with InterruptedException if thread was interrupt. Interrupt flag has restored correctly.
+     * @throws Error or RuntimeException - any exception from generator
+     * @return next generated object
+     */
+    @Override
+    public T next() {
+        if (!started) ensureStarted();
+        synchronized (CONSUMER_LOCK) {
+            Buffer b = awaitBuffer();
+            if (b.pos==b.count) {
+                if (b.error!=null) { // throw exception from generator
+                    Throwable doThrow = b.error;
+                    b.error = null; // throw once
+                    if (doThrow instanceof RuntimeException) throw (RuntimeException) doThrow;
+                    if (doThrow instanceof Error) throw (Error) doThrow;
+                    throw new RuntimeException("Iteratorthread stop with error", doThrow); // never
+                }
+                throw new NoSuchElementException();
+            }
+            T item = (T) b.items[b.pos];
+            b.items[b.pos++] = null; // for GC
+            return item;
+        }
+    }
+
+    /**
+     * Swap read buffer with generator buffer while it is empty. Call under CONSUMER_LOCK.
+     * @return buffer with items or last buffer
+     */
+    private Buffer awaitBuffer() {
+        Buffer b = consumed;
+        if (b==null) return CLOSED; // closed before start
+        boolean full = true; // first wait full buffer
+        while (b.pos==b.count && !b.last && !closed) {
+            consumerWait = !full;
+            try {
+                b = exchanger.exchange(b, full ? FULL_WAIT_NANOS : CLOSE_CHECK_NANOS, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException te) {
+                full = false;
+                continue; // check close()
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Can not wait iterator source", ie);
+            } finally {
+                consumerWait = false;
+            }
+            consumed = b;
+        }
+        if (closed && !b.last) { // closed iterator has no more items
+            b.pos = b.count;
+            b.last = true;
+        }
+        return b;
+    }
+
+    /**
+     * Ensure close thread, does not wait it. Not read items are dropped.
+     * Consumer what wait in hasNext()/next() is wake up and has no more items.
+     */
+    @Override
+    public void close() {
+        GeneratorLeakDetector.closed(leakRecord);
+        closed = true;
+        if (generator.isAlive()) generator.interrupt();
+    }
+
+    /**
+     * close() and wait generator thread exit.
+     * @return false when generator thread is still alive after timeout
+     */
+    public boolean close(Duration timeout) {
+        close();
+        try {
+            generator.join(Math.max(1L, timeout.toMillis()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return !generator.isAlive();
+    }
+}
@@ -5,11 +5,22 @@
 package com.alexeyk.yieldlib.concurrent;
 
 import java.io.Closeable;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
 
 
 /**
@@ -23,10 +34,30 @@ import java.util.concurrent.BlockingQueue;
  * Operation hasNext() and next() is thread-safe, but not botch - it is 2 atomic operation. 
  * You can be take hasNext()==true but another threadcan take next() before first thread take.
  * 
+ * hasNext() poll queue head to consumer slot (one queue lock per item), next() take it from slot by CAS without queue lock.
+ * So item in slot free place in queue: generator can be one item more ahead. With many readers item of hasNext() can be taken
+ * by next() of other reader: each item is taken once, but order of items between readers is not defined.
+ * 
+ * For limit waiting of slow generator use poll(timeout), hasNext(timeout) or setDeadline().
+ * 
  * Implementation should override <code>generator()</code> when call many times method yield(T).
- * By defauld internal thread start in the constructor by call protected start().You can override start() and call generator.start() later.
- * ToDo it is bad practicle start thread into constructor.
+ * By defauld internal thread start in the constructor (StartPolicy.EAGER). Use StartPolicy.LAZY for start on first read
+ * or StartPolicy.MANUAL for start by call launch(). StartPolicy.PRESTARTED run generator on already started spare thread,
+ * for low time to first element (see GeneratorThreads).
+ * 
+ * PrefetchPolicy set how many items generator can produce ahead: queue capacity for fixed(N),
+ * AdaptiveBlockingQueue for adaptive(min, max) and strict lockstep for NONE.
+ * Adaptive queue grow when bursty generator is blocked while consumer is active and shrink when it idle, see bufferCapacity().
+ * 
+ * For items with very different size use MemoryBudget: yield() wait while estimated bytes in flight is over budget.
+ * 
+ * skip(n) drop queued items and next items on generator thread without put to queue. Generator can jump ahead itself by claimSkip().
+ * 
+ * yieldFrom(source) put source to queue: consumer read it direct, without put to queue per item.
  * 
+ * chunked(size, maxWait) and windowed(size, step) return view what read chunks: generator collect chunk and put it to queue as one element.
+ * 
+ * Consumer on ForkJoinPool worker (parallel stream, ForkJoin task) wait via ForkJoinPool.managedBlock, so pool start spare worker.
  * 
  * (C) A.K. 2022
  * @author A.K.
@@ -36,102 +67,956 @@ public abstract class YieldIteratorQueueImpl<T> implements Iterator<T>, Closeabl
     protected final Thread generator;
     protected volatile Throwable nextErr; // Error or RuntimeException
     protected volatile BlockingQueue yieldWindow;
+    protected final StartPolicy startPolicy;
+    protected final Object demandLock; // not null only for lockstep (PrefetchPolicy.NONE)
+    protected boolean demand; // lockstep: consumer wait next item, guarded by demandLock
+    protected volatile boolean started;
+    protected final MemoryBudget budget; // can be null
+    protected final ToLongFunction sizeEstimator; // not null when budget is set
+    private volatile boolean budgetWait; // generator wait budget in yield()
+    protected volatile long deadline; // System.nanoTime()
+    protected volatile boolean hasDeadline;
+    protected final Object leakRecord; // GeneratorLeakDetector, null when not sampled
+    protected volatile GeneratorScope scope; // can be null
+    protected volatile Throwable cancelCause; // error for consumer instead of end on close(), set by scope
+    protected volatile boolean closed;
+    protected final AtomicLong skipCount = new AtomicLong(); // next items what should be dropped
+    private volatile DelegateSource delegate; // source of yieldFrom() in queue
+    private volatile ChunkBuffer chunker; // chunked() or windowed(), guarded by chunkLock
+    private final ReentrantLock chunkLock = new ReentrantLock(); // consumer take not full chunk only when queue is empty
+    private static final Object TIMED_OUT = new Object();
+    private volatile Object cached = NOT_CACHED; // item what hasNext() poll from queue
+    private static final Object NOT_CACHED = new Object();
+    private static final Object FILLING = new Object(); // one reader poll queue to slot now
+    private static final AtomicReferenceFieldUpdater<YieldIteratorQueueImpl, Object> CACHED =
+            AtomicReferenceFieldUpdater.newUpdater(YieldIteratorQueueImpl.class, Object.class, "cached");
+    private final ReentrantLock slotLock = new ReentrantLock(); // one reader wait in timed poll to consumer slot
+    private final Object peekLock = new Object(); // peek(k) wait generator put
+    private volatile int peekWaiters; // guarded by peekLock
+    private static final long PEEK_CHECK_NANOS = 10_000_000L; // peek(k) check generator exit
 
     public YieldIteratorQueueImpl() {
-        // // ArrayBlockingQueue, LinkedBlockingDequeue, LinkedTransferQueue
-        this(new ArrayBlockingQueue(2, false));
-        // fair = true decrease perfomance down to /3 but you will not work with multiple thread read iterator, isn't it?
+        this(StartPolicy.EAGER);
+    }
+    public YieldIteratorQueueImpl(StartPolicy startPolicy) {
+        this(startPolicy, PrefetchPolicy.fixed(2));
+    }
+    public YieldIteratorQueueImpl(StartPolicy startPolicy, PrefetchPolicy prefetchPolicy) {
+        this(queueFor(prefetchPolicy), startPolicy, prefetchPolicy.isLockstep(), null, null, null);
     }
     public YieldIteratorQueueImpl(BlockingQueue withQueue) {
-        Objects.nonNull(withQueue);
+        this(withQueue, StartPolicy.EAGER, false, null, null, null);
+    }
+    /**
+     * Generator owned by scope: thread is created by scope thread factory, scope close it.
+     */
+    public YieldIteratorQueueImpl(GeneratorScope scope) {
+        this(queueFor(PrefetchPolicy.fixed(2)), StartPolicy.EAGER, false, null, null, Objects.requireNonNull(scope));
+    }
+    /**
+     * Generator owned by scope and limited by scope budget.
+     * @param sizeEstimator size of item in bytes. Should return same size for same item, item should not be changed after yield.
+     */
+    public YieldIteratorQueueImpl(GeneratorScope scope, ToLongFunction<? super T> sizeEstimator) {
+        this(new LinkedBlockingQueue(), StartPolicy.EAGER, false, childBudget(scope), Objects.requireNonNull(sizeEstimator), scope);
+    }
+    private static MemoryBudget childBudget(GeneratorScope scope) { // own budget of generator, so generator not wait other generators of scope forever
+        MemoryBudget shared = scope.budget();
+        if (shared==null) throw new IllegalArgumentException("Scope has not budget");
+        return new MemoryBudget(Long.MAX_VALUE, shared);
+    }
+    /**
+     * Backpressure by item size instead of item count: yield() wait while bytes in flight is over budget.
+     * @param budget own budget or shared, for example MemoryBudget.global()
+     * @param sizeEstimator size of item in bytes. Should return same size for same item, item should not be changed after yield.
+     */
+    public YieldIteratorQueueImpl(StartPolicy startPolicy, MemoryBudget budget, ToLongFunction<? super T> sizeEstimator) {
+        this(new LinkedBlockingQueue(), startPolicy, false, Objects.requireNonNull(budget), Objects.requireNonNull(sizeEstimator), null);
+    }
+    protected YieldIteratorQueueImpl(BlockingQueue withQueue, StartPolicy startPolicy, boolean lockstep, MemoryBudget budget, ToLongFunction<? super T> sizeEstimator, GeneratorScope scope) {
+        this(withQueue, startPolicy, lockstep, budget, sizeEstimator, scope, true);
+    }
+    /**
+     * @param launchEager false - subclass call launch() for eager start policy itself, after own fields are set.
+     * Thread is still taken by start policy, for example spare thread for StartPolicy.PRESTARTED.
+     */
+    protected YieldIteratorQueueImpl(BlockingQueue withQueue, StartPolicy startPolicy, boolean lockstep, MemoryBudget budget, ToLongFunction<? super T> sizeEstimator, GeneratorScope scope, boolean launchEager) {
+        Objects.requireNonNull(withQueue);
+        Objects.requireNonNull(startPolicy);
+        if (budget!=null) Objects.requireNonNull(sizeEstimator);
         yieldWindow = withQueue;
+        this.startPolicy = startPolicy;
+        this.demandLock = lockstep ? new Object() : null;
+        this.budget = budget;
+        this.sizeEstimator = sizeEstimator;
         String threadName="iterator-generator-"+getClass().getSimpleName();  // fixme Can not see class name on thread list. Why?
-        generator = new Thread(threadName) {
+        Runnable body = new Runnable() {
             @Override
             public void run() {
                 try {//todo refactor try-catch block
+                    if (demandLock!=null) awaitDemand();
                     YieldIteratorQueueImpl.this.generator();
-                    yieldWindow.put(STOP_OBJECT);
+                    putStop();
                 } catch (InterruptedException ei) {
-                    try {
-                        // ignore interrupt - it is raw thread body.
-                        if (yieldWindow.remainingCapacity()<1) yieldWindow.clear();
-                        yieldWindow.put(STOP_OBJECT);
-                        // can be data lost of previous wyieldWindow!
-                    } catch (InterruptedException ei2) {
-                        System.err.print(getClass().getName() + ": Error put stop object to queue - interrup two. External thread can deadlock!");
-                    }
+                    // ignore interrupt - it is raw thread body. Queued items are not lost.
+                    putStop();
                 } catch (Throwable e) {
-                    nextErr = e;
-                    try {
-                        yieldWindow.put(STOP_OBJECT);
-                    } catch (InterruptedException ei) {
-                        if (yieldWindow.remainingCapacity()<1) yieldWindow.clear();
-                        try {
-                          yieldWindow.put(STOP_OBJECT);
-                        } catch (InterruptedException ei2) {
-                            System.err.print(getClass().getName() + ": Error put stop object to queue - interrup two. External thread can deadlock!");
-                        }
-                    }
+                    if (!closed) nextErr = e; // closed iterator has no more items
+                    GeneratorScope s = YieldIteratorQueueImpl.this.scope;
+                    if (s!=null) s.failed(YieldIteratorQueueImpl.this, e);
+                    putStop();
+                } finally {
+                    GeneratorScope s = YieldIteratorQueueImpl.this.scope;
+                    if (s!=null) s.finished(YieldIteratorQueueImpl.this);
                 }
             }
         };
-        generator.setDaemon(true);
-        start();//todo when should start? Not in constructor.
+        generator = scope!=null ? scope.newThread(body) : GeneratorThreads.newThread(body, threadName, startPolicy);
+        if (!generator.isAlive()) generator.setDaemon(true); // spare thread is started daemon
+        leakRecord = GeneratorLeakDetector.track(this, generator);
+        if (scope!=null) scope.add(this);
+        if (launchEager && startPolicy.isEager()) launch();
+    }
+
+    /**
+     * Put stop marker after queued items. Call from generator thread on exit.
+     * Only close() can cancel it, close() put own stop marker.
+     */
+    private void putStop() {
+        while (!closed) try {
+            ChunkBuffer c = chunker;
+            if (c!=null) flushChunk(c);
+            putQueue(STOP_OBJECT);
+            return;
+        } catch (InterruptedException ei) {
+            // ignore interrupt - it is raw thread body on exit status.
+        }
+    }
+
+    /**
+     * @return queue for prefetch policy
+     */
+    protected static BlockingQueue queueFor(PrefetchPolicy prefetchPolicy) {
+        // ArrayBlockingQueue, LinkedBlockingDequeue, LinkedTransferQueue
+        // fair = true decrease perfomance down to /3 but you will not work with multiple thread read iterator, isn't it?
+        if (prefetchPolicy.isLockstep()) return new ArrayBlockingQueue(2, false); // item + STOP_OBJECT
+        if (prefetchPolicy.isAdaptive()) return new AdaptiveBlockingQueue(prefetchPolicy.min, prefetchPolicy.max);
+        return new ArrayBlockingQueue(prefetchPolicy.max, false);
     }
     
+    /**
+     * Start generator thread, for StartPolicy.MANUAL. Repeated call or call after close() is ignored.
+     */
+    public void launch() {
+        if (started) return;
+        synchronized (this) {
+            if (started || closed) return;
+            started = true;
+        }
+        start();
+    }
+
+    /**
+     * Start generator thread, called once by launch(). Subclass can override it for delay start and call super.start() later.
+     */
     protected void start() {
-        generator.start();
+        GeneratorThreads.start(generator);
+    }
+
+    /**
+     * Start generator thread on first read for StartPolicy.LAZY.
+     */
+    protected void ensureStarted() {
+        if (closed) return; // queue has stop marker
+        if (startPolicy==StartPolicy.MANUAL) throw new IllegalStateException("Generator is not started, call launch() before read");
+        launch();
+    }
+
+    /**
+     * Lockstep: wait till consumer ask next item. Call from generator thread.
+     */
+    private void awaitDemand() throws InterruptedException {
+        synchronized (demandLock) {
+            while (!demand && !closed) demandLock.wait();
+            if (closed) throw new InterruptedException("Iterator closed");
+            demand = false;
+        }
+    }
+
+    /**
+     * Lockstep: consumer ask next item when queue is empty.
+     */
+    private void signalDemand() {
+        synchronized (demandLock) {
+            if (!demand && yieldWindow.isEmpty()) {
+                demand = true;
+                demandLock.notify();
+            }
+        }
     }
     
+    /**
+     * Remove all items from queue and return their size to budget.
+     */
+    protected void discardQueued() {
+        if (budget==null) {
+            yieldWindow.clear();
+            return;
+        }
+        Object item;
+        while ((item = yieldWindow.poll())!=null) releaseBudget(item);
+    }
+
+    private void releaseBudget(Object item) {
+        if (budget==null || item==STOP_OBJECT || item instanceof DelegateSource) return;
+        if (item instanceof ChunkBuffer.Chunk) budget.release(((ChunkBuffer.Chunk)item).bytes);
+        else budget.release(sizeEstimator.applyAsLong(item));
+    }
+
+    /**
+     * @return current capacity of yieldWindow queue. For AdaptiveBlockingQueue it changed while iterate.
+     */
+    public int bufferCapacity() {
+        BlockingQueue queue = yieldWindow;
+        if (queue instanceof AdaptiveBlockingQueue) return ((AdaptiveBlockingQueue)queue).getCapacity();
+        return queue.size() + queue.remainingCapacity();
+    }
+
     /**
      * Generator for put yield(X).
      * @throws InterruptedException 
      */
     protected abstract void generator() throws InterruptedException;
     
-    protected void yield(T item) throws InterruptedException {
-        //todo check it closed status?
+    /**
+     * Acquire budget. While generator wait budget peek(k) what wait more items fail fast:
+     * consumer should take items before generator continue. Call from generator thread.
+     */
+    private void acquireBudget(long bytes) throws InterruptedException {
+        if (budget.tryAcquire(bytes)) return;
+        budgetWait = true;
+        if (peekWaiters>0) signalPeek();
+        try {
+            budget.acquire(bytes);
+        } finally {
+            budgetWait = false;
+        }
+    }
+
+    /**
+     * Put to queue and wake peek(k) what wait more items. Call from generator thread.
+     */
+    private void putQueue(Object item) throws InterruptedException {
         yieldWindow.put(item);
+        if (peekWaiters>0) signalPeek();
     }
 
+    private void signalPeek() {
+        synchronized (peekLock) {
+            peekLock.notifyAll();
+        }
+    }
+
+    /**
+     * @throws InterruptedException when iterator is closed, also when generator ignore previous interrupt
+     */
+    protected void yield(T item) throws InterruptedException {
+        if (closed) throw new InterruptedException("Iterator closed");
+        ChunkBuffer c = chunker;
+        if (c!=null) {
+            yieldChunked(c, item);
+            return;
+        }
+        if (skipCount.get()>0 && skipLocally()) return;
+        if (budget!=null) {
+            long size = sizeEstimator.applyAsLong(item);
+            acquireBudget(size);
+            try {
+                putQueue(item);
+            } catch (InterruptedException | RuntimeException e) {
+                budget.release(size);
+                throw e;
+            }
+        } else if (demandLock!=null) {
+            synchronized (demandLock) {
+                putQueue(item); // queue is empty in lockstep
+                demand = false; // this item is answer to consumer demand
+            }
+            awaitDemand();
+        } else
+            putQueue(item);
+        if (closed) { // close() was between check and put
+            dropAfterClose();
+            throw new InterruptedException("Iterator closed");
+        }
+    }
+
+    /**
+     * Collect item to chunk, put full chunk to queue.
+     */
+    private void yieldChunked(ChunkBuffer c, T item) throws InterruptedException {
+        chunkLock.lock();
+        try {
+            ChunkBuffer.Chunk chunk = c.add(item);
+            if (chunk==null) return;
+            putChunk(c, chunk);
+        } finally {
+            chunkLock.unlock();
+        }
+        if (closed) { // close() was between check and put
+            dropAfterClose();
+            throw new InterruptedException("Iterator closed");
+        }
+        if (demandLock!=null) awaitDemand();
+    }
+
+    /**
+     * Put last not full chunk to queue.
+     */
+    private void flushChunk(ChunkBuffer c) throws InterruptedException {
+        chunkLock.lock();
+        try {
+            ChunkBuffer.Chunk rest = c.takePartial();
+            if (rest!=null) putChunk(c, rest);
+        } finally {
+            chunkLock.unlock();
+        }
+    }
+
+    /**
+     * Put chunk to queue, budget is sum of item size. Call under chunkLock.
+     */
+    private void putChunk(ChunkBuffer c, ChunkBuffer.Chunk chunk) throws InterruptedException {
+        try {
+            if (budget!=null) {
+                long bytes = 0;
+                for (Object item:chunk) bytes += sizeEstimator.applyAsLong((T) item);
+                acquireBudget(bytes);
+                chunk.bytes = bytes;
+            }
+            if (demandLock!=null) {
+                synchronized (demandLock) {
+                    putQueue(chunk); // queue is empty in lockstep
+                    demand = false; // this chunk is answer to consumer demand
+                }
+            } else
+                putQueue(chunk);
+        } catch (InterruptedException | RuntimeException e) {
+            if (chunk.bytes>0) budget.release(chunk.bytes);
+            if (c.partial) c.restore(chunk); // items are not lost
+            throw e;
+        }
+    }
+
+    /**
+     * Yield all items of source, as python "yield from". Source is not read by generator thread:
+     * it is put to queue as one element and consumer read items direct from it, generator wait till source is drained.
+     * Source should not be changed till method return. Items of source are not counted by MemoryBudget.
+     * Nested generator (YieldIterator, YieldIteratorQueueImpl) is closed when this iterator is closed.
+     * @throws InterruptedException when iterator is closed
+     * @throws RuntimeException or Error - exception of source on consumer read, generator can catch it
+     */
+    protected void yieldFrom(Iterator<? extends T> source) throws InterruptedException {
+        if (closed) throw new InterruptedException("Iterator closed");
+        if (chunker!=null) { // items go to chunk
+            while (source.hasNext()) this.yield(source.next());
+            return;
+        }
+        while (skipCount.get()>0 && source.hasNext() && skipLocally()) source.next(); // skip on generator thread
+        DelegateSource d = new DelegateSource(source);
+        delegate = d;
+        try {
+            if (demandLock!=null) {
+                synchronized (demandLock) {
+                    putQueue(d); // queue is empty in lockstep
+                    demand = false; // this source is answer to consumer demand
+                }
+            } else
+                putQueue(d);
+            if (closed) { // close() was between check and put
+                dropAfterClose();
+                throw new InterruptedException("Iterator closed");
+            }
+            d.awaitDrained();
+        } finally {
+            delegate = null;
+        }
+        if (closed) throw new InterruptedException("Iterator closed");
+        if (demandLock!=null) awaitDemand();
+    }
+
+    /**
+     * yieldFrom(source.iterator())
+     */
+    protected void yieldFrom(Iterable<? extends T> source) throws InterruptedException {
+        yieldFrom(source.iterator());
+    }
+
+    /**
+     * yieldFrom(source.iterator()), stream is not closed.
+     */
+    protected void yieldFrom(Stream<? extends T> source) throws InterruptedException {
+        yieldFrom(source.iterator());
+    }
+
+    /**
+     * Skip next n items. Queued items are dropped now, other items are dropped by generator thread in yield()
+     * without put to queue. If generator has less items sequence just ends.
+     * @param n count of items for skip
+     */
+    public void skip(long n) {
+        if (n<0) throw new IllegalArgumentException("Negative skip: "+n);
+        if (n==0) return;
+        if (takeCached()!=NOT_CACHED && --n==0) return;
+        skipCount.addAndGet(n);
+        dropSkipped();
+    }
+
+    /**
+     * Hook for generator what can jump ahead itself (for example seek cursor): take count of next items what consumer skip.
+     * Generator should not yield these items. Call from generator thread.
+     * @return count of items for skip, 0 when nothing is skipped
+     */
+    protected long claimSkip() {
+        while (true) {
+            long s = skipCount.get();
+            long queued = yieldWindow.size();
+            if (s<=queued) return 0; // consumer drop queued items
+            if (skipCount.compareAndSet(s, queued)) return s-queued;
+        }
+    }
+
+    /**
+     * Generator: skip item when skipCount is over queued items (item is after all queued).
+     * @return true when item is skipped
+     */
+    private boolean skipLocally() {
+        long s;
+        while ((s = skipCount.get()) > yieldWindow.size()) {
+            if (skipCount.compareAndSet(s, s-1)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Consumer: drop skipped items from queue head. Count is decreased before remove, so generator see it.
+     */
+    private void dropSkipped() {
+        long s;
+        while ((s = skipCount.get())>0) {
+            Object head = yieldWindow.peek();
+            if (head==null || head==STOP_OBJECT) return;
+            if (!skipCount.compareAndSet(s, s-1)) continue;
+            if (head instanceof DelegateSource) { // skip in source of yieldFrom()
+                if (((DelegateSource)head).takeItem()==DelegateSource.DRAINED) {
+                    skipCount.incrementAndGet();
+                    removeDrained(head);
+                }
+                continue;
+            }
+            Object item = yieldWindow.poll();
+            if (item==null || item==STOP_OBJECT) { // other consumer take it
+                if (item!=null) yieldWindow.offer(item);
+                skipCount.incrementAndGet();
+                return;
+            }
+            releaseBudget(item);
+        }
+    }
+
+    /**
+     * awaitQueue() and drop skipped items.
+     */
+    private boolean awaitQueueSkipped(long timeoutNanos) {
+        while (true) {
+            if (!awaitQueue(timeoutNanos)) return false;
+            if (skipCount.get()==0) return true;
+            dropSkipped();
+            if (!yieldWindow.isEmpty()) return true;
+        }
+    }
     
     @Override
     public boolean hasNext() {
-        if (yieldWindow.isEmpty()) {
-            while (yieldWindow.size()==0) {
-                Thread.yield();
-                /*try {
-                Thread.sleep(10L);
+        if (isCached()) return true;
+        if (!started) ensureStarted();
+        if (skipCount.get()==0 && cacheHead()) return true;
+        if (!awaitQueueSkipped(deadlineLeft())) throw deadlineExceeded();
+        if (cacheHead()) return true;
+        Object inQueue = yieldWindow.peek(); // todo it throw any exception?
+        return (inQueue != STOP_OBJECT || nextErr != null || isCached());
+    }
+
+    /**
+     * hasNext() with timeout.
+     * @throws TimeoutException when generator has not produce item or finished in time
+     * @throws RuntimeException with TimeoutException when iterator deadline exceeded
+     */
+    public boolean hasNext(Duration timeout) throws TimeoutException {
+        if (isCached()) return true;
+        if (!started) ensureStarted();
+        long nanos = Math.max(0L, timeout.toNanos()); // negative is not wait, as BlockingQueue.poll()
+        long left = deadlineLeft();
+        boolean byDeadline = left>=0 && left<=nanos;
+        long waitNanos = byDeadline ? left : nanos;
+        boolean ready = yieldWindow instanceof AdaptiveBlockingQueue ? awaitQueueSkipped(waitNanos) : pollToSlot(waitNanos);
+        if (!ready) {
+            if (byDeadline) throw deadlineExceeded();
+            throw new TimeoutException("Generator has not produce item in "+timeout);
+        }
+        if (cacheHead()) return true;
+        Object inQueue = yieldWindow.peek();
+        return (inQueue != STOP_OBJECT || nextErr != null || isCached());
+    }
+
+    /**
+     * Timed wait of next item without spin: blocking poll of queue to consumer slot, for queue without awaitNotEmpty().
+     * Stop marker and source of yieldFrom() are returned to queue, drained source is dropped.
+     * @param timeoutNanos negative for wait without timeout
+     * @return false on timeout
+     */
+    private boolean pollToSlot(long timeoutNanos) {
+        long end = System.nanoTime()+timeoutNanos;
+        try {
+            if (timeoutNanos<0) slotLock.lockInterruptibly();
+            else if (!slotLock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS)) return false; // other reader wait in poll
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Thread interrupted.", ie);
+        }
+        try {
+            while (true) {
+                if (isCached()) return true;
+                if (skipCount.get()>0) dropSkipped();
+                if (!CACHED.compareAndSet(this, NOT_CACHED, FILLING)) { // cacheHead() of other reader, it does not wait
+                    Thread.onSpinWait();
+                    continue;
+                }
+                if (demandLock!=null) signalDemand();
+                Object head;
+                try {
+                    head = PoolBlocking.take(yieldWindow, timeoutNanos<0 ? -1L : Math.max(0L, end-System.nanoTime()));
                 } catch (InterruptedException ie) {
+                    cached = NOT_CACHED;
                     Thread.currentThread().interrupt();
-                    throw new RuntimeException("Cannot wait queue data", ie);
-                }*/
-                //todo wait till data more correct. todo yse bidirection wueue + take()?
+                    throw new RuntimeException("Thread interrupted.", ie);
+                }
+                if (head==null) {
+                    cached = NOT_CACHED;
+                    return false;
+                }
+                if (head==STOP_OBJECT || head instanceof DelegateSource) {
+                    cached = NOT_CACHED;
+                    Object item = null;
+                    try {
+                        if (head instanceof DelegateSource) item = ((DelegateSource)head).peekItem(leftNanos(timeoutNanos, end));
+                    } finally {
+                        if (item!=DelegateSource.DRAINED && !yieldWindow.offer(head)) { // return to head
+                            System.err.printf(getClass().getName() + ": Can not return object to queue.");
+                        }
+                    }
+                    if (item==DelegateSource.DRAINED) {
+                        if (demandLock!=null) signalDemand(); // generator continue
+                        continue;
+                    }
+                    return item!=DelegateSource.TIMED_OUT;
+                }
+                if (budget!=null) releaseBudget(head);
+                cached = head;
+                if (closed) cached = NOT_CACHED; // close() was between poll and set
+                return true;
             }
+        } finally {
+            slotLock.unlock();
         }
-        Object inQueue = yieldWindow.peek(); // todo it throw any exception?
-        return (inQueue != STOP_OBJECT || nextErr != null);
+    }
+
+    /**
+     * @return true when consumer slot has item
+     */
+    private boolean isCached() {
+        Object item = cached;
+        return item!=NOT_CACHED && item!=FILLING;
+    }
+
+    /**
+     * Poll queue head to consumer slot. Stop marker and source of yieldFrom() are returned to queue,
+     * generator does not put more after them.
+     * @return true when slot has item
+     */
+    private boolean cacheHead() {
+        if (!CACHED.compareAndSet(this, NOT_CACHED, FILLING)) return isCached(); // other reader fill it
+        Object head = yieldWindow.poll();
+        if (head==null || head==STOP_OBJECT || head instanceof DelegateSource) {
+            cached = NOT_CACHED;
+            if (head!=null && !yieldWindow.offer(head)) { // return to head
+                System.err.printf(getClass().getName() + ": Can not return object to queue.");
+            }
+            return false;
+        }
+        if (budget!=null) releaseBudget(head);
+        cached = head;
+        if (closed) cached = NOT_CACHED; // close() was between poll and set
+        return true;
+    }
+
+    /**
+     * Take item from consumer slot, without queue lock.
+     * @return item or NOT_CACHED
+     */
+    private Object takeCached() {
+        Object item = cached;
+        if (item==NOT_CACHED || item==FILLING || !CACHED.compareAndSet(this, item, NOT_CACHED)) return NOT_CACHED; // other reader take it
+        return item;
+    }
+
+    /**
+     * Wait while queue is empty.
+     * @param timeoutNanos negative for wait without timeout
+     * @return false on timeout
+     */
+    private boolean awaitQueue(long timeoutNanos) {
+        long end = System.nanoTime()+timeoutNanos;
+        while (true) {
+            if (!awaitNotEmpty(leftNanos(timeoutNanos, end))) return false;
+            Object head = yieldWindow.peek();
+            if (!(head instanceof DelegateSource)) return true;
+            // source of yieldFrom() is read by consumer, nested generator is waited till same end
+            Object item = ((DelegateSource)head).peekItem(leftNanos(timeoutNanos, end));
+            if (item==DelegateSource.TIMED_OUT) return false;
+            if (item!=DelegateSource.DRAINED) return true;
+            removeDrained(head);
+        }
+    }
+
+    /**
+     * @return nanos till end, negative when timeoutNanos is negative (wait without timeout)
+     */
+    private static long leftNanos(long timeoutNanos, long end) {
+        return timeoutNanos<0 ? -1L : Math.max(0L, end-System.nanoTime());
+    }
+
+    /**
+     * Source of yieldFrom() is drained: remove it from queue, generator continue.
+     */
+    private void removeDrained(Object source) {
+        yieldWindow.remove(source);
+        if (demandLock!=null) signalDemand();
+    }
+
+    /**
+     * Wait while queue is empty.
+     * @param timeoutNanos negative for wait without timeout
+     * @return false on timeout
+     */
+    private boolean awaitNotEmpty(long timeoutNanos) {
+        if (!yieldWindow.isEmpty()) return true;
+        if (demandLock!=null) signalDemand();
+        if (yieldWindow instanceof AdaptiveBlockingQueue) try {
+            return PoolBlocking.block(() -> ((AdaptiveBlockingQueue)yieldWindow).awaitNotEmpty(timeoutNanos));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Thread interrupted.", ie);
+        }
+        if (PoolBlocking.inPool()) try { // spin wait hold pool worker too
+            return PoolBlocking.block(() -> spinNotEmpty(timeoutNanos));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Thread interrupted.", ie);
+        }
+        return spinNotEmpty(timeoutNanos);
+    }
+
+    /**
+     * Wait while queue is empty by Thread.yield().
+     * @param timeoutNanos negative for wait without timeout
+     * @return false on timeout
+     */
+    private boolean spinNotEmpty(long timeoutNanos) {
+        long end = timeoutNanos>0 ? System.nanoTime()+timeoutNanos : 0L;
+        while (yieldWindow.size()==0) {
+            if (timeoutNanos==0 || (timeoutNanos>0 && end-System.nanoTime()<=0)) return false;
+            Thread.yield();
+            /*try {
+            Thread.sleep(10L);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Cannot wait queue data", ie);
+            }*/
+            //todo wait till data more correct. todo yse bidirection wueue + take()?
+        }
+        return true;
     }
 
     /**
      * 
      * @throws NoSuchElementException when no more element
      * @throws RuntimeException with InterruptedException if thread was interrupt. Interrupt flag has restored correctly.
+     * @throws RuntimeException with TimeoutException when iterator deadline exceeded
      * @throws Error or RuntimeException - any exception from generator
      * @return next generated object
      */
     @Override
     public T next() {
-        Object inQueue;
+        Object item = takeCached(); // lockstep: generator is asked on next hasNext()
+        if (item!=NOT_CACHED) return (T) item;
+        if (!started) ensureStarted();
+        if (skipCount.get()>0 && !awaitQueueSkipped(deadlineLeft())) throw deadlineExceeded();
+        if (demandLock!=null) signalDemand();
+        try {
+            item = takeQueued(deadlineLeft());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Thread interrupted.", ie);
+        }
+        if (item==TIMED_OUT) throw deadlineExceeded();
+        return (T) item;
+    }
+
+    /**
+     * next() with timeout. Based on BlockingQueue.poll(timeout).
+     * @return next generated object or null when generator has not produce item in time
+     * @throws NoSuchElementException when no more element
+     * @throws RuntimeException with TimeoutException when iterator deadline exceeded
+     * @throws Error or RuntimeException - any exception from generator
+     */
+    public T poll(long timeout, TimeUnit unit) {
+        Object item = takeCached();
+        if (item!=NOT_CACHED) return (T) item;
+        if (!started) ensureStarted();
+        if (demandLock!=null) signalDemand();
+        long nanos = Math.max(0L, unit.toNanos(timeout)); // negative is not wait, as BlockingQueue.poll()
+        long left = deadlineLeft();
+        boolean byDeadline = left>=0 && left<=nanos;
+        if (skipCount.get()>0 && !awaitQueueSkipped(byDeadline ? left : nanos)) {
+            if (byDeadline) throw deadlineExceeded();
+            return null;
+        }
         try {
-            inQueue = yieldWindow.take();
+            item = takeQueued(byDeadline ? left : nanos);
         } catch (InterruptedException ie) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Thread interrupted.", ie);
         }
+        if (item==TIMED_OUT) {
+            if (byDeadline) throw deadlineExceeded();
+            return null;
+        }
+        return (T) item;
+    }
+
+    /**
+     * Take next item. Source of yieldFrom() stay at queue head till it is drained, items are taken from it.
+     * @param timeoutNanos negative for wait without timeout
+     * @return item or TIMED_OUT
+     */
+    private Object takeQueued(long timeoutNanos) throws InterruptedException {
+        long end = System.nanoTime()+timeoutNanos;
+        while (true) {
+            Object inQueue = yieldWindow.peek();
+            if (!(inQueue instanceof DelegateSource)) {
+                inQueue = PoolBlocking.take(yieldWindow, leftNanos(timeoutNanos, end));
+                if (inQueue==null) return TIMED_OUT;
+                if (!(inQueue instanceof DelegateSource)) return unwrapTaken(inQueue);
+                yieldWindow.offer(inQueue); // return to head: generator does not put more till source is drained
+            }
+            Object item = ((DelegateSource)inQueue).takeItem(leftNanos(timeoutNanos, end));
+            if (item==DelegateSource.TIMED_OUT) return TIMED_OUT;
+            if (item!=DelegateSource.DRAINED) return item;
+            removeDrained(inQueue);
+        }
+    }
+
+    /**
+     * Next item without take it: next() return same item.
+     * @throws NoSuchElementException when no more element
+     * @throws RuntimeException with TimeoutException when iterator deadline exceeded
+     * @throws Error or RuntimeException - any exception from generator, next() throw it again
+     * @return next generated object
+     */
+    public T peek() {
+        Object slot = cached;
+        if (slot!=NOT_CACHED && slot!=FILLING) return (T) slot;
+        if (!started) ensureStarted();
+        if (!awaitQueueSkipped(deadlineLeft())) throw deadlineExceeded();
+        if (cacheHead()) return peek();
+        Object inQueue = yieldWindow.peek();
+        if (inQueue==STOP_OBJECT || inQueue==null) throw endOfPeek(); // null: other consumer take it
+        if (inQueue instanceof DelegateSource) {
+            Object item = ((DelegateSource)inQueue).peekItem();
+            return item!=DelegateSource.DRAINED ? (T) item : peek(); // drained by other consumer
+        }
+        return (T) inQueue;
+    }
+
+    /**
+     * Item k ahead without take it, read from queue. Generator can be ahead only by queue capacity,
+     * so k should be less that getLookaheadLimit(). With MemoryBudget generator also wait budget.
+     * @param k 0 - next item, 1 - item after next...
+     * @throws NoSuchElementException when generator has less items
+     * @throws RuntimeException with TimeoutException when iterator deadline exceeded
+     * @throws Error or RuntimeException - exception from generator before item k, next() throw it again
+     * @throws IllegalStateException when item k is after source of yieldFrom() or generator wait MemoryBudget before item k
+     */
+    public T peek(int k) {
+        if (k==0) return peek();
+        if (k<0 || k>=getLookaheadLimit()) throw new IllegalArgumentException("Lookahead "+k+" is over limit "+getLookaheadLimit());
+        if (!started) ensureStarted();
+        int q = isCached() ? k-1 : k; // item k in queue, after item in consumer slot
+        long timeoutNanos = deadlineLeft();
+        long end = System.nanoTime()+timeoutNanos;
+        while (true) {
+            if (skipCount.get()>0) dropSkipped();
+            if (hasPeekItem(q)) break;
+            if (budgetWait) throw new IllegalStateException("Lookahead "+k+" is over MemoryBudget: generator wait budget till consumer take items");
+            long left = timeoutNanos>=0 ? end-System.nanoTime() : PEEK_CHECK_NANOS;
+            if (left<=0) throw deadlineExceeded();
+            synchronized (peekLock) { // generator signal on put, see putQueue()
+                peekWaiters++;
+                try {
+                    if (!hasPeekItem(q) && !budgetWait) PoolBlocking.wait(peekLock, Math.min(left, PEEK_CHECK_NANOS));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Thread interrupted.", ie);
+                } finally {
+                    peekWaiters--;
+                }
+            }
+        }
+        int i=0;
+        for (Object inQueue:yieldWindow) {
+            if (inQueue==STOP_OBJECT) break;
+            if (inQueue instanceof DelegateSource) {
+                Object item = i==q ? ((DelegateSource)inQueue).peekItem() : DelegateSource.DRAINED;
+                if (item!=DelegateSource.DRAINED) return (T) item;
+                throw new IllegalStateException("Lookahead "+k+" into source of yieldFrom() is not supported");
+            }
+            if (i++==q) return (T) inQueue;
+        }
+        throw endOfPeek();
+    }
+
+    /**
+     * @return true when peek(k) should not wait: queue has item q, generator finished (stop marker is put before thread exit) or closed
+     */
+    private boolean hasPeekItem(int q) {
+        return yieldWindow.size()>q || !generator.isAlive() || delegate!=null || closed;
+    }
+
+    /**
+     * @return max lookahead of peek(k): k should be less. With MemoryBudget queue is not bounded,
+     * peek(k) fail when generator wait budget before item k.
+     */
+    public int getLookaheadLimit() {
+        if (demandLock!=null) return 1; // lockstep
+        if (yieldWindow instanceof AdaptiveBlockingQueue) return ((AdaptiveBlockingQueue)yieldWindow).getMinCapacity();
+        return bufferCapacity();
+    }
+
+    private RuntimeException endOfPeek() {
+        Throwable err = nextErr;
+        if (err instanceof Error) throw (Error) err;
+        if (err instanceof RuntimeException) return (RuntimeException) err;
+        return new NoSuchElementException();
+    }
+
+    /**
+     * View what read chunks of items: generator collect up to size items and put them to queue as one element.
+     * Not full chunk is taken by consumer when first item of it wait more that maxWait, and put by generator at the end.
+     * Call it before generator produce items (StartPolicy.LAZY or MANUAL), else produced items are returned as chunks of one item.
+     * Do not read this iterator after it, read view only.
+     * With MemoryBudget chunk size is sum of item size.
+     * @param size max items in chunk
+     * @param maxWait max wait of first item in chunk, null - wait till chunk is full
+     */
+    public Iterator<List<T>> chunked(int size, Duration maxWait) {
+        if (maxWait!=null && (maxWait.isZero() || maxWait.isNegative())) throw new IllegalArgumentException("Max wait should be positive: "+maxWait);
+        return startChunking(new ChunkBuffer(size, size, maxWait==null ? -1L : maxWait.toNanos(), true));
+    }
+
+    /**
+     * View what read windows of items: tumbling when step==size, sliding when step&lt;size.
+     * Generator collect window and put it to queue as one element. Not full window at the end is dropped.
+     * Call it before generator produce items (StartPolicy.LAZY or MANUAL), see chunked().
+     * @param size items in window
+     * @param step items between window start
+     */
+    public Iterator<List<T>> windowed(int size, int step) {
+        return startChunking(new ChunkBuffer(size, step, -1L, false));
+    }
+
+    private Iterator<List<T>> startChunking(ChunkBuffer buffer) {
+        chunkLock.lock();
+        try {
+            if (chunker!=null) throw new IllegalStateException("Iterator is already chunked");
+            chunker = buffer;
+        } finally {
+            chunkLock.unlock();
+        }
+        return new Iterator<List<T>>() {
+            @Override
+            public boolean hasNext() {
+                if (!started) ensureStarted();
+                while (true) {
+                    long delay = chunkDelay(buffer); // maxWait when chunk is empty: check again
+                    if (delay==0) return true;
+                    if (awaitQueue(delay)) return yieldWindow.peek()!=STOP_OBJECT || nextErr!=null;
+                }
+            }
+
+            @Override
+            public List<T> next() {
+                if (!started) ensureStarted();
+                while (true) {
+                    if (demandLock!=null) signalDemand();
+                    Object item;
+                    try {
+                        item = takeQueued(chunkDelay(buffer));
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Thread interrupted.", ie);
+                    }
+                    if (item!=TIMED_OUT) return item instanceof ChunkBuffer.Chunk ? (List<T>) item : Collections.singletonList((T) item);
+                    ChunkBuffer.Chunk rest = takeDuePartial(buffer);
+                    if (rest!=null) return (List<T>) rest;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return nanos till not full chunk should be taken, see ChunkBuffer.flushDelay()
+     */
+    private long chunkDelay(ChunkBuffer c) {
+        if (!chunkLock.tryLock()) return 1_000_000L; // generator put chunk now, check again soon
+        try {
+            return c.flushDelay(System.nanoTime());
+        } finally {
+            chunkLock.unlock();
+        }
+    }
+
+    /**
+     * Consumer take not full chunk what wait more that maxWait.
+     * @return chunk or null
+     */
+    private ChunkBuffer.Chunk takeDuePartial(ChunkBuffer c) {
+        if (!chunkLock.tryLock()) return null;
+        try {
+            if (!yieldWindow.isEmpty() || c.flushDelay(System.nanoTime())!=0) return null; // queued chunk is before it
+            return c.takePartial();
+        } finally {
+            chunkLock.unlock();
+        }
+    }
+
+    /**
+     * Process object what is taken from queue: throw generator error or NoSuchElementException on stop.
+     */
+    private T unwrapTaken(Object inQueue) {
         if (inQueue==STOP_OBJECT) {
-            if (!yieldWindow.add(inQueue)) { // return stop marker
+            if (closed) dropAfterClose(); // nextErr is cancelCause of scope or null
+            else if (!yieldWindow.offer(inQueue)) { // return stop marker
                 System.err.printf(getClass().getName() + ": Can not return stop object to queue.");
             } 
             if (nextErr!=null) { // throw exception from generator
@@ -143,29 +1028,83 @@ public abstract class YieldIteratorQueueImpl<T> implements Iterator<T>, Closeabl
             } else
                 throw new NoSuchElementException();
         }
+        if (budget!=null) releaseBudget(inQueue);
         return (T) inQueue;
     }
+
+    /**
+     * Set deadline for this iterator: after it hasNext(), next() and poll() does not wait generator
+     * and throw RuntimeException with TimeoutException. Item what is ready can be taken after deadline.
+     * @param timeFromNow time till deadline, null for remove deadline
+     */
+    public void setDeadline(Duration timeFromNow) {
+        if (timeFromNow==null) {
+            hasDeadline = false;
+        } else {
+            deadline = System.nanoTime()+timeFromNow.toNanos();
+            hasDeadline = true;
+        }
+    }
+
+    /**
+     * @return nanos till deadline (0 when it is expired) or -1 when deadline is not set
+     */
+    protected long deadlineLeft() {
+        if (!hasDeadline) return -1L;
+        return Math.max(0L, deadline-System.nanoTime());
+    }
+
+    protected RuntimeException deadlineExceeded() {
+        return new RuntimeException("Iterator deadline exceeded", new TimeoutException("Generator has not produce item till deadline"));
+    }
     
     /**
-     * Ensure close thread.
-     * Last element from next() will be removed ater call close().
+     * Remove queued items (and return budget) and put stop marker, so waiting consumer wake up. Call after close.
+     */
+    private void dropAfterClose() {
+        do {
+            discardQueued();
+        } while (!yieldWindow.offer(STOP_OBJECT));
+    }
+
+    /**
+     * Ensure close thread, does not wait it.
+     * Not taken items will be removed ater call close(). Consumer what wait in hasNext()/next() is wake up
+     * and has no more items.
+     * 
+     * There are no finalize(): running generator thread reference this iterator, so it never be collected before close().
+     * Use GeneratorLeakDetector for find not closed generators.
      */
     @Override
     public void close() {
+        GeneratorLeakDetector.closed(leakRecord);
+        closed = true;
+        cached = NOT_CACHED; // drop item of hasNext()
+        DelegateSource d = delegate;
+        if (d!=null) d.cancel(); // wake consumer what wait nested generator and generator
+        nextErr = cancelCause; // null: consumer has no more items
+        if (demandLock!=null) synchronized (demandLock) {
+            demandLock.notifyAll();
+        }
+        if (peekWaiters>0) signalPeek();
         if (generator.isAlive()) {
             generator.interrupt();
             //System.out.print(getClass().getSimpleName()+" thead success closing!"); // debug
         }
+        dropAfterClose();
     }
-    
+
     /**
-     * Warning: can be not work. See java https://openjdk.java.net/jeps/421
-     * Recomended execute <code>close()</code> or reaadall sequence from iterator.
-     * @throws Throwable 
+     * close() and wait generator thread exit.
+     * @return false when generator thread is still alive after timeout (generator ignore interrupt, for example blocking IO)
      */
-    @Override
-    protected void finalize() throws Throwable{
+    public boolean close(Duration timeout) {
         close();
-        super.finalize();
+        try {
+            generator.join(Math.max(1L, timeout.toMillis()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return !generator.isAlive();
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for AdaptiveBlockingQueue
+ * @author A.K.
+ */
+public class AdaptiveBlockingQueueTest {
+
+    public AdaptiveBlockingQueueTest() {
+    }
+
+    /**
+     * Simulate burst: consumer wait empty queue, then producer wait full queue.
+     */
+    private void burst(AdaptiveBlockingQueue<Integer> queue) throws InterruptedException {
+        while (queue.poll()!=null); // consumer take all
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS)); // consumer wait empty
+        while (queue.offer(1)); // producer fill
+        assertFalse(queue.offer(1, 1, TimeUnit.MILLISECONDS)); // producer wait full
+    }
+
+    /**
+     * Capacity grow on burst and never over max
+     */
+    @Test
+    public void testGrowOnBurst() throws Exception {
+        System.out.println("testGrowOnBurst");
+        AdaptiveBlockingQueue<Integer> queue = new AdaptiveBlockingQueue<>(1, 8);
+        assertEquals(1, queue.getCapacity());
+        for (int i=0;i<AdaptiveBlockingQueue.ADAPT_STEPS;i++) burst(queue);
+        assertEquals(2, queue.getCapacity());
+        for (int i=0;i<AdaptiveBlockingQueue.ADAPT_STEPS*10;i++) burst(queue);
+        assertEquals(8, queue.getCapacity());
+        assertEquals(8, queue.size());
+    }
+
+    /**
+     * Waiter of awaitNotEmpty() does not take item, so take() of other thread should be wake up too
+     */
+    @Test
+    public void testAwaitNotEmptyPassWakeup() throws Exception {
+        System.out.println("testAwaitNotEmptyPassWakeup");
+        AdaptiveBlockingQueue<Integer> queue = new AdaptiveBlockingQueue<>(1, 8);
+        Thread checker = new Thread(() -> {
+            try {
+                queue.awaitNotEmpty(-1);
+            } catch (InterruptedException ie) {
+                // test end
+            }
+        });
+        final Integer[] taken = new Integer[1];
+        Thread taker = new Thread(() -> {
+            try {
+                taken[0] = queue.take();
+            } catch (InterruptedException ie) {
+                // test end
+            }
+        });
+        checker.start();
+        taker.start();
+        Thread.sleep(100);// for >99,9%
+        queue.put(1);
+        taker.join(1000);
+        assertFalse(taker.isAlive()); // checker does not eat signal of taker
+        assertEquals((Integer)1, taken[0]);
+        checker.join(100); // when taker wake first queue is empty again: checker wait, it is valid
+        checker.interrupt();
+    }
+
+    /**
+     * Capacity decrease when consumer take from full queue
+     */
+    @Test
+    public void testShrinkOnFull() throws Exception {
+        System.out.println("testShrinkOnFull");
+        AdaptiveBlockingQueue<Integer> queue = new AdaptiveBlockingQueue<>(2, 8);
+        for (int i=0;i<AdaptiveBlockingQueue.ADAPT_STEPS*2;i++) burst(queue);
+        assertEquals(8, queue.getCapacity());
+        for (int i=0;i<AdaptiveBlockingQueue.ADAPT_STEPS*20;i++) {
+            while (queue.offer(1)); // producer is faster
+            assertEquals((Integer)1, queue.take());
+        }
+        assertEquals(2, queue.getCapacity());
+    }
+
+    /**
+     * Capacity decrease when queue idle
+     */
+    @Test
+    public void testShrinkOnIdle() throws Exception {
+        System.out.println("testShrinkOnIdle");
+        AdaptiveBlockingQueue<Integer> queue = new AdaptiveBlockingQueue<>(1, 8);
+        for (int i=0;i<AdaptiveBlockingQueue.ADAPT_STEPS*3;i++) burst(queue);
+        assertEquals(8, queue.getCapacity());
+        Thread.sleep(AdaptiveBlockingQueue.IDLE_NANOS/1_000_000L+50);
+        queue.take();
+        assertEquals(4, queue.getCapacity());
+        assertEquals(7, queue.size()); // items are not lost
+    }
+
+    /**
+     * Generator with bursts
+     */
+    @Test
+    public void testBurstyGenerator() throws Exception {
+        System.out.println("testBurstyGenerator");
+        final int N=2000;
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.EAGER, PrefetchPolicy.adaptive(2, 64)) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<N;i++) {
+                    if (i%100==0) Thread.sleep(5); // burst pause
+                    yield(i); // test implementation
+                }
+            }
+        };
+        long summ=0;
+        int count=0;
+        while (iterator.hasNext()) {
+            summ+=iterator.next();
+            count++;
+        }
+        assertEquals(N, count);
+        long Nx = N-1; // begin from 0
+        assertEquals(Nx*(Nx+1)/2L, summ);
+        System.out.println("Buffer capacity after bursty generator: "+iterator.bufferCapacity());
+        assertTrue(iterator.bufferCapacity()>=2 && iterator.bufferCapacity()<=64);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Stress test: many threads read one iterator. Each item should be taken once, no lost and no duplicate,
+ * error of generator should be thrown once. Print throughput for each count of readers.
+ *
+ * Half of readers call hasNext() before next(): it is 2 atomic operation, so other reader can take last item between them
+ * and next() throw NoSuchElementException. It is valid, reader should stop.
+ *
+ * Items per run: <code>-Dyieldlib.stress.items=N</code>, default 20000.
+ * @author A.K.
+ */
+public class ConcurrentReadStressTest {
+    private static final int ITEMS = Integer.getInteger("yieldlib.stress.items", 20_000);
+    private static final int[] READERS = {1, 2, 4, 8, 16, 32, 64};
+    private static final String[] IMPLEMENTATIONS = {"YieldIterator", "YieldIteratorQueueImpl", "YieldIteratorQueueImpl(adaptive)",
+        "YieldIteratorExchangerImpl", "YieldIteratorAdaptiveImpl"};
+    private static final long READER_TIMEOUT_MILLIS = 60_000L; // deadlock or livelock
+
+    public ConcurrentReadStressTest() {
+    }
+
+    /**
+     * Items 0..N-1, then error when fail
+     */
+    private Iterator<Integer> newIterator(String implementation, final int n, final boolean fail) {
+        switch (implementation) {
+            case "YieldIterator": return new YieldIterator<Integer>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<n;i++) yield(i); // test implementation
+                    if (fail) throw new RuntimeException("Ups, some throuble happend.");
+                }
+            };
+            case "YieldIteratorQueueImpl": return new YieldIteratorQueueImpl<Integer>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<n;i++) yield(i); // test implementation
+                    if (fail) throw new RuntimeException("Ups, some throuble happend.");
+                }
+            };
+            case "YieldIteratorQueueImpl(adaptive)": return new YieldIteratorQueueImpl<Integer>(StartPolicy.EAGER, PrefetchPolicy.adaptive(2, 64)) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<n;i++) yield(i); // test implementation
+                    if (fail) throw new RuntimeException("Ups, some throuble happend.");
+                }
+            };
+            case "YieldIteratorExchangerImpl": return new YieldIteratorExchangerImpl<Integer>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<n;i++) yield(i); // test implementation
+                    if (fail) throw new RuntimeException("Ups, some throuble happend.");
+                }
+            };
+            case "YieldIteratorAdaptiveImpl": return new YieldIteratorAdaptiveImpl<Integer>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<n;i++) yield(i); // test implementation
+                    if (fail) throw new RuntimeException("Ups, some throuble happend.");
+                }
+            };
+            default: throw new IllegalArgumentException(implementation);
+        }
+    }
+
+    /**
+     * Read iterator by many threads.
+     * @param taken count of take for each item
+     * @param errors count of generator error thrown to readers
+     * @return nanoseconds from start of readers till all readers stop
+     */
+    private long readConcurrent(final Iterator<Integer> iterator, int readers, final AtomicIntegerArray taken, final AtomicInteger errors) throws Exception {
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final AtomicReference<Throwable> unexpected = new AtomicReference<>();
+        Thread[] threads = new Thread[readers];
+        for (int r=0;r<readers;r++) {
+            final boolean checkHasNext = r%2==1;
+            threads[r] = new Thread(() -> {
+                try {
+                    startSignal.await();
+                    while (!checkHasNext || iterator.hasNext()) {
+                        Integer item;
+                        try {
+                            item = iterator.next();
+                        } catch (NoSuchElementException e) {
+                            break; // other reader take last item
+                        } catch (RuntimeException e) {
+                            if (!"Ups, some throuble happend.".equals(e.getMessage())) throw e;
+                            errors.incrementAndGet();
+                            continue; // next call should be end
+                        }
+                        taken.incrementAndGet(item);
+                    }
+                } catch (Throwable e) {
+                    unexpected.compareAndSet(null, e);
+                }
+            }, "stress-reader-"+r);
+            threads[r].start();
+        }
+        long time1=System.nanoTime();
+        startSignal.countDown();
+        for (Thread t:threads) {
+            t.join(READER_TIMEOUT_MILLIS);
+            assertFalse("Reader hang: "+t.getName(), t.isAlive());
+        }
+        long time2=System.nanoTime();
+        if (unexpected.get()!=null) throw new AssertionError("Reader fail", unexpected.get());
+        return time2-time1;
+    }
+
+    private static void assertTakenOnce(String title, AtomicIntegerArray taken) {
+        for (int i=0;i<taken.length();i++) {
+            assertEquals(title+": item "+i+" taken", 1, taken.get(i));
+        }
+    }
+
+    // --- Multi-threading safe test ---
+
+    /**
+     * Each item taken once by 1..64 readers, print throughput scaling
+     */
+    @Test
+    public void testNoLostNoDuplicate() throws Exception {
+        System.out.println("testNoLostNoDuplicate");
+        for (String implementation:IMPLEMENTATIONS) {
+            StringBuilder curve = new StringBuilder(implementation).append(" nanosecond per item by readers:");
+            for (int readers:READERS) {
+                Iterator<Integer> iterator = newIterator(implementation, ITEMS, false);
+                AtomicIntegerArray taken = new AtomicIntegerArray(ITEMS);
+                AtomicInteger errors = new AtomicInteger();
+                long time = readConcurrent(iterator, readers, taken, errors);
+                assertTakenOnce(implementation+" readers="+readers, taken);
+                assertEquals(0, errors.get());
+                assertFalse(iterator.hasNext());
+                curve.append(' ').append(readers).append('=').append(time/ITEMS);
+            }
+            System.out.println(curve);
+        }
+    }
+
+    /**
+     * Generator error thrown once after all items, other readers stop
+     */
+    @Test
+    public void testErrorPropagation() throws Exception {
+        System.out.println("testErrorPropagation");
+        final int N=1000;
+        for (String implementation:IMPLEMENTATIONS) {
+            for (int readers:READERS) {
+                Iterator<Integer> iterator = newIterator(implementation, N, true);
+                AtomicIntegerArray taken = new AtomicIntegerArray(N);
+                AtomicInteger errors = new AtomicInteger();
+                readConcurrent(iterator, readers, taken, errors);
+                assertTakenOnce(implementation+" readers="+readers, taken);
+                assertEquals(implementation+" readers="+readers+": error thrown", 1, errors.get());
+                assertFalse(iterator.hasNext());
+            }
+        }
+    }
+}
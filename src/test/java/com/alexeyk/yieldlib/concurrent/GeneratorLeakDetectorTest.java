@@ -0,0 +1,91 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.time.Duration;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for GeneratorLeakDetector
+ * @author A.K.
+ */
+public class GeneratorLeakDetectorTest {
+
+    public GeneratorLeakDetectorTest() {
+    }
+
+    @After
+    public void tearDown() {
+        GeneratorLeakDetector.setSampling(0);
+    }
+
+    private static boolean reported(String testMethod) {
+        List<Throwable> leaks = GeneratorLeakDetector.report(Duration.ZERO);
+        for (Throwable t:leaks) {
+            for (StackTraceElement e:t.getStackTrace()) if (testMethod.equals(e.getMethodName())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Not closed generator is reported till close()
+     */
+    @Test
+    public void testReportNotClosed() throws Exception {
+        System.out.println("testReportNotClosed");
+        GeneratorLeakDetector.setSampling(1);
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;;i++) yield(i); // test implementation
+            }
+        };
+        assertEquals((Integer)0, iterator.next());
+        Thread.sleep(50);
+        assertTrue(reported("testReportNotClosed"));
+        GeneratorLeakDetector.printReport(Duration.ZERO, System.out);
+        iterator.close();
+        assertFalse(reported("testReportNotClosed"));
+    }
+
+    /**
+     * Finished generator is not leak
+     */
+    @Test
+    public void testFinishedNotReported() throws Exception {
+        System.out.println("testFinishedNotReported");
+        GeneratorLeakDetector.setSampling(1);
+        YieldIterator<Integer> iterator = new YieldIterator<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<3;i++) yield(i); // test implementation
+            }
+        };
+        while (iterator.hasNext()) iterator.next();
+        Thread.sleep(100);// for >99,9%
+        assertFalse(reported("testFinishedNotReported"));
+    }
+
+    /**
+     * Disabled detector does not track
+     */
+    @Test
+    public void testDisabled() throws Exception {
+        System.out.println("testDisabled");
+        YieldIterator<Integer> iterator = new YieldIterator<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;;i++) yield(i); // test implementation
+            }
+        };
+        assertEquals((Integer)0, iterator.next());
+        assertNull(iterator.leakRecord);
+        assertFalse(reported("testDisabled"));
+        iterator.close();
+    }
+}
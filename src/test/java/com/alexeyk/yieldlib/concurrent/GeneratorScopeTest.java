@@ -0,0 +1,248 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for GeneratorScope
+ * @author A.K.
+ */
+public class GeneratorScopeTest {
+
+    public GeneratorScopeTest() {
+    }
+
+    /**
+     * Scope close all generator threads
+     */
+    @Test
+    public void testCloseAll() throws Exception {
+        System.out.println("testCloseAll");
+        GeneratorScope scope = new GeneratorScope();
+        List<Iterator<Integer>> iterators = new ArrayList<>();
+        try (scope) {
+            for (int n=0;n<10;n++) {
+                iterators.add(n%2==0 ? new YieldIterator<Integer>(scope) {
+                    @Override
+                    protected void generator() throws InterruptedException {
+                        for (int i=0;;i++) yield(i); // test implementation
+                    }
+                } : new YieldIteratorQueueImpl<Integer>(scope) {
+                    @Override
+                    protected void generator() throws InterruptedException {
+                        for (int i=0;;i++) yield(i); // test implementation
+                    }
+                });
+            }
+            for (Iterator<Integer> it:iterators) assertEquals((Integer)0, it.next());
+            assertEquals(10, scope.aliveCount());
+        }
+        assertEquals(0, scope.aliveCount());
+        assertNull(scope.getFailure());
+        scope.throwIfFailed();
+    }
+
+    /**
+     * First error cancel other generators
+     */
+    @Test
+    public void testFirstFailure() throws Exception {
+        System.out.println("testFirstFailure");
+        try (GeneratorScope scope = new GeneratorScope()) {
+            YieldIterator<Integer> endless = new YieldIterator<>(scope) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;;i++) yield(i); // test implementation
+                }
+            };
+            YieldIteratorQueueImpl<Integer> failed = new YieldIteratorQueueImpl<>(scope) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    yield(1);
+                    Thread.sleep(100); // after endless yield
+                    throw new RuntimeException("Ups, some throuble happend.");
+                }
+            };
+            assertEquals((Integer)0, endless.next());
+            endless.generator.join(1000);
+            assertFalse(endless.generator.isAlive()); // cancelled
+            assertEquals("Ups, some throuble happend.", assertThrows(RuntimeException.class, ()-> scope.throwIfFailed()).getMessage());
+            assertEquals((Integer)1, failed.next());
+            assertThrows(RuntimeException.class, ()-> failed.next());
+        }
+    }
+
+    /**
+     * Error of YieldIterator cancel other generators before consumer take its last item
+     */
+    @Test
+    public void testFailureSlowConsumer() throws Exception {
+        System.out.println("testFailureSlowConsumer");
+        try (GeneratorScope scope = new GeneratorScope()) {
+            YieldIterator<Integer> endless = new YieldIterator<>(scope) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;;i++) yield(i); // test implementation
+                }
+            };
+            YieldIterator<Integer> failed = new YieldIterator<>(scope) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    yield(1);
+                    throw new RuntimeException("Ups, some throuble happend.");
+                }
+            };
+            endless.generator.join(1000); // failed consumer does not read yet
+            assertFalse(endless.generator.isAlive()); // cancelled
+            assertEquals((Integer)1, failed.next());
+            assertEquals("Ups, some throuble happend.", assertThrows(RuntimeException.class, ()-> failed.next()).getMessage());
+        }
+    }
+
+    /**
+     * Consumer of cancelled generator get CancellationException with first error, not end of items
+     */
+    @Test
+    public void testCancelledSibling() throws Exception {
+        System.out.println("testCancelledSibling");
+        try (GeneratorScope scope = new GeneratorScope()) {
+            List<Iterator<Integer>> siblings = new ArrayList<>();
+            siblings.add(new YieldIterator<Integer>(scope) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;;i++) yield(i); // test implementation
+                }
+            });
+            siblings.add(new YieldIteratorQueueImpl<Integer>(scope) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;;i++) yield(i); // test implementation
+                }
+            });
+            YieldIterator<Integer> failed = new YieldIterator<>(scope) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    Thread.sleep(100); // after siblings yield
+                    throw new RuntimeException("Ups, some throuble happend.");
+                }
+            };
+            assertEquals("Ups, some throuble happend.", assertThrows(RuntimeException.class, ()-> failed.next()).getMessage());
+            for (Iterator<Integer> sibling:siblings) {
+                CancellationException e = assertThrows(CancellationException.class, ()-> {
+                    while (sibling.hasNext()) sibling.next();
+                });
+                assertEquals("Ups, some throuble happend.", e.getCause().getMessage());
+            }
+        }
+    }
+
+    /**
+     * Finished generators are removed from scope
+     */
+    @Test
+    public void testFinishedRemoved() throws Exception {
+        System.out.println("testFinishedRemoved");
+        try (GeneratorScope scope = new GeneratorScope()) {
+            for (int n=0;n<100;n++) {
+                YieldIterator<Integer> iterator = new YieldIterator<>(scope) {
+                    @Override
+                    protected void generator() throws InterruptedException {
+                        for (int i=0;i<3;i++) yield(i); // test implementation
+                    }
+                };
+                while (iterator.hasNext()) iterator.next();
+                iterator.generator.join(1000);
+            }
+            synchronized (scope.members) {
+                assertEquals(0, scope.members.size());
+            }
+            assertNull(scope.getFailure());
+        }
+    }
+
+    /**
+     * Generator what failed before add() keep its items and error, other generators are cancelled
+     */
+    @Test
+    public void testAddFailed() throws Exception {
+        System.out.println("testAddFailed");
+        try (GeneratorScope scope = new GeneratorScope()) {
+            YieldIterator<Integer> endless = new YieldIterator<>(scope) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;;i++) yield(i); // test implementation
+                }
+            };
+            YieldIteratorQueueImpl<Integer> failed = new YieldIteratorQueueImpl<>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    yield(1);
+                    throw new RuntimeException("Ups, some throuble happend.");
+                }
+            };
+            failed.generator.join(1000);
+            assertFalse(failed.generator.isAlive());
+            scope.add(failed);
+            endless.generator.join(1000);
+            assertFalse(endless.generator.isAlive()); // cancelled
+            assertEquals((Integer)1, failed.next());
+            assertEquals("Ups, some throuble happend.", assertThrows(RuntimeException.class, ()-> failed.next()).getMessage());
+        }
+    }
+
+    /**
+     * Generators share scope budget
+     */
+    @Test
+    public void testSharedBudget() throws Exception {
+        System.out.println("testSharedBudget");
+        MemoryBudget budget = new MemoryBudget(1000);
+        try (GeneratorScope scope = new GeneratorScope(Duration.ofSeconds(1), budget)) {
+            List<YieldIteratorQueueImpl<byte[]>> iterators = new ArrayList<>();
+            for (int n=0;n<3;n++) {
+                iterators.add(new YieldIteratorQueueImpl<byte[]>(scope, (byte[] b) -> b.length) {
+                    @Override
+                    protected void generator() throws InterruptedException {
+                        for (int i=0;i<20;i++) yield(new byte[100]); // test implementation
+                    }
+                });
+            }
+            Thread.sleep(100);// for >99,9%
+            assertTrue(budget.getUsed()<=1000+3*100); // one item per generator can be over limit
+            int count=0;
+            for (YieldIteratorQueueImpl<byte[]> it:iterators) {
+                while (it.hasNext()) {
+                    it.next();
+                    count++;
+                }
+            }
+            assertEquals(60, count);
+            assertEquals(0, budget.getUsed());
+        }
+    }
+
+    /**
+     * Generator can not be added to closed scope
+     */
+    @Test
+    public void testClosedScope() throws Exception {
+        System.out.println("testClosedScope");
+        GeneratorScope scope = new GeneratorScope();
+        scope.close();
+        assertThrows(IllegalStateException.class, ()-> new YieldIterator<Integer>(scope) {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+            }
+        });
+    }
+}
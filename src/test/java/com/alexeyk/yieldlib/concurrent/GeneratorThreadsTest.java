@@ -0,0 +1,317 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for GeneratorThreads, footprint report and startup latency of generators
+ * @author A.K.
+ */
+public class GeneratorThreadsTest {
+    private static final long SMALL_STACK = 128*1024;
+
+    public GeneratorThreadsTest() {
+    }
+
+    /**
+     * Generator with small stack work as usual
+     */
+    @Test
+    public void testSmallStack() throws Exception {
+        System.out.println("testSmallStack");
+        long before = GeneratorThreads.getStackSize();
+        GeneratorThreads.setStackSize(SMALL_STACK);
+        try {
+            YieldIterator<Integer> iterator = new YieldIterator<>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<10;i++) yield(i); // test implementation
+                }
+            };
+            int count=0;
+            while (iterator.hasNext()) assertEquals((Integer)count++, iterator.next());
+            assertEquals(10, count);
+        } finally {
+            GeneratorThreads.setStackSize(before);
+        }
+        assertThrows(IllegalArgumentException.class, ()-> GeneratorThreads.setStackSize(-1));
+    }
+
+    /**
+     * Scope thread factory with own stack size
+     */
+    @Test
+    public void testScopeStackSize() throws Exception {
+        System.out.println("testScopeStackSize");
+        try (GeneratorScope scope = new GeneratorScope(Duration.ofSeconds(1), null, GeneratorThreads.withStackSize("small-", SMALL_STACK))) {
+            YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(scope) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    yield(1);
+                }
+            };
+            assertTrue(iterator.generator.getName().startsWith("small-"));
+            assertEquals((Integer)1, iterator.next());
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    /**
+     * Not started generator does not allocate handoff buffers
+     */
+    @Test
+    public void testLazyBuffers() throws Exception {
+        System.out.println("testLazyBuffers");
+        YieldIteratorExchangerImpl<Integer> exchanger = new YieldIteratorExchangerImpl<>(StartPolicy.LAZY, 1000) {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+            }
+        };
+        assertNull(exchanger.consumed);
+        exchanger.close();
+        assertFalse(exchanger.hasNext()); // closed before start
+        YieldIteratorAdaptiveImpl<Integer> adaptive = new YieldIteratorAdaptiveImpl<>(StartPolicy.LAZY) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<1000;i++) yield(i); // test implementation
+            }
+        };
+        assertEquals(0, adaptive.ring.length);
+        long summ=0;
+        while (adaptive.hasNext()) summ+=adaptive.next();
+        assertEquals(999L*1000/2, summ);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i=0;i<3;i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory()-rt.freeMemory();
+    }
+
+    /**
+     * Retained heap per instance
+     * @param started start generator, it wait in yield()
+     */
+    private long measure(Supplier<Closeable> factory, int count, boolean started) throws Exception {
+        List<Closeable> generators = new ArrayList<>(count);
+        long before = usedHeap();
+        for (int i=0;i<count;i++) generators.add(factory.get());
+        if (started) for (Closeable c:generators) ((Iterator)c).hasNext();
+        long after = usedHeap();
+        for (Closeable c:generators) c.close();
+        return (after-before)/count;
+    }
+
+    /**
+     * PRESTARTED generator run on spare daemon thread, pool is refilled in background
+     */
+    @Test
+    public void testPrestarted() throws Exception {
+        System.out.println("testPrestarted");
+        int before = GeneratorThreads.getWarmThreads();
+        GeneratorThreads.setWarmThreads(2);
+        try {
+            waitSpares(2);
+            final Thread[] generatorThread = new Thread[2];
+            YieldIterator<Integer> iterator = new YieldIterator<>(StartPolicy.PRESTARTED) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    generatorThread[0] = Thread.currentThread();
+                    for (int i=0;i<10;i++) yield(i); // test implementation
+                }
+            };
+            YieldIteratorQueueImpl<Integer> queue = new YieldIteratorQueueImpl<>(StartPolicy.PRESTARTED) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    generatorThread[1] = Thread.currentThread();
+                    for (int i=0;i<10;i++) yield(i); // test implementation
+                }
+            };
+            for (int i=0;i<10;i++) {
+                assertEquals((Integer)i, iterator.next());
+                assertEquals((Integer)i, queue.next());
+            }
+            assertFalse(iterator.hasNext());
+            assertFalse(queue.hasNext());
+            assertThrows(NoSuchElementException.class, ()-> queue.next());
+            for (Thread t:generatorThread) {
+                assertTrue(t.isDaemon());
+                assertFalse(t.getName(), t.getName().startsWith("yieldlib-spare")); // name of generator
+            }
+            assertTrue(iterator.close(Duration.ofSeconds(1)));
+            assertTrue(queue.close(Duration.ofSeconds(1)));
+            waitSpares(2); // refilled
+
+            GeneratorThreads.setWarmThreads(0); // no pool: spare thread is created by constructor
+            assertEquals(0, GeneratorThreads.spareThreads());
+            YieldIterator<Integer> cold = new YieldIterator<>(StartPolicy.PRESTARTED) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    yield(1);
+                }
+            };
+            assertEquals((Integer)1, cold.next());
+            assertFalse(cold.hasNext());
+            assertTrue(cold.close(Duration.ofSeconds(1)));
+            assertEquals(0, GeneratorThreads.spareThreads());
+        } finally {
+            GeneratorThreads.setWarmThreads(before);
+        }
+    }
+
+    /**
+     * close() stop PRESTARTED generator what wait consumer
+     */
+    @Test
+    public void testPrestartedClose() throws Exception {
+        System.out.println("testPrestartedClose");
+        YieldIteratorQueueImpl<Integer> queue = new YieldIteratorQueueImpl<>(StartPolicy.PRESTARTED) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;;i++) yield(i); // endless
+            }
+        };
+        YieldIterator<Integer> iterator = new YieldIterator<>(StartPolicy.PRESTARTED) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;;i++) yield(i); // endless
+            }
+        };
+        assertEquals((Integer)0, queue.next());
+        assertTrue(queue.close(Duration.ofSeconds(1)));
+        assertTrue(iterator.close(Duration.ofSeconds(1))); // may be closed before first item
+        assertFalse(iterator.hasNext());
+    }
+
+    private static void waitSpares(int count) throws InterruptedException {
+        for (int i=0;i<500 && GeneratorThreads.spareThreads()<count;i++) Thread.sleep(10);
+        assertEquals(count, GeneratorThreads.spareThreads());
+    }
+
+    // --- Footprint report ---
+
+    /**
+     * Print retained heap per generator and how many generators fit in 1 GB heap
+     */
+    @Test
+    public void testFootprintReport() throws Exception {
+        System.out.println("testFootprintReport");
+        final int LAZY_COUNT=10_000, STARTED_COUNT=1_000;
+        long before = GeneratorThreads.getStackSize();
+        GeneratorThreads.setStackSize(SMALL_STACK);
+        try {
+            List<String> names = List.of("YieldIterator", "YieldIteratorQueueImpl", "YieldIteratorExchangerImpl(1)", "YieldIteratorAdaptiveImpl");
+            List<Supplier<Closeable>> factories = List.of(
+                () -> new YieldIterator<Integer>(StartPolicy.LAZY) {
+                    @Override
+                    protected void generator() throws InterruptedException {
+                        for (int i=0;;i++) yield(i); // test implementation
+                    }
+                },
+                () -> new YieldIteratorQueueImpl<Integer>(StartPolicy.LAZY) {
+                    @Override
+                    protected void generator() throws InterruptedException {
+                        for (int i=0;;i++) yield(i); // test implementation
+                    }
+                },
+                () -> new YieldIteratorExchangerImpl<Integer>(StartPolicy.LAZY, 1) {
+                    @Override
+                    protected void generator() throws InterruptedException {
+                        for (int i=0;;i++) yield(i); // test implementation
+                    }
+                },
+                () -> new YieldIteratorAdaptiveImpl<Integer>(StartPolicy.LAZY) {
+                    @Override
+                    protected void generator() throws InterruptedException {
+                        for (int i=0;;i++) yield(i); // test implementation
+                    }
+                });
+            for (int n=0;n<names.size();n++) {
+                long lazy = measure(factories.get(n), LAZY_COUNT, false);
+                long started = measure(factories.get(n), STARTED_COUNT, true);
+                System.out.println(names.get(n)+": not started "+lazy+" bytes, started "+started+" bytes of heap + "+SMALL_STACK/1024
+                        +" KB stack; in 1 GB heap fit "+(1L<<30)/Math.max(1, lazy)+" not started or "+(1L<<30)/Math.max(1, started)+" started");
+                assertTrue(lazy<2048);
+            }
+        } finally {
+            GeneratorThreads.setStackSize(before);
+        }
+    }
+
+    // --- Hight-Load test ---
+
+    /**
+     * Time from constructor to first element, nanoseconds sorted
+     */
+    private static long[] startLatency(Supplier<Iterator<Integer>> factory, int count) throws Exception {
+        long[] times = new long[count];
+        for (int i=0;i<count;i++) {
+            long time1=System.nanoTime();
+            Iterator<Integer> iterator = factory.get();
+            assertEquals((Integer)0, iterator.next());
+            times[i] = System.nanoTime()-time1;
+            ((Closeable)iterator).close();
+            Thread.sleep(0, 100_000); // refill thread and exit of previous generator
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length-1, (int)(sorted.length*p))];
+    }
+
+    /**
+     * Startup latency percentiles of EAGER and PRESTARTED generators
+     */
+    @Test
+    public void testLoadStartLatency() throws Exception {
+        System.out.println("testLoadStartLatency");
+        final int WARMUP=200, N=2000;
+        int before = GeneratorThreads.getWarmThreads();
+        GeneratorThreads.setWarmThreads(4);
+        try {
+            waitSpares(4);
+            for (StartPolicy policy:List.of(StartPolicy.EAGER, StartPolicy.PRESTARTED)) {
+                List<String> names = List.of("YieldIterator", "YieldIteratorQueueImpl");
+                List<Supplier<Iterator<Integer>>> factories = List.of(
+                    () -> new YieldIterator<Integer>(policy) {
+                        @Override
+                        protected void generator() throws InterruptedException {
+                            for (int i=0;i<10;i++) yield(i); // test implementation
+                        }
+                    },
+                    () -> new YieldIteratorQueueImpl<Integer>(policy) {
+                        @Override
+                        protected void generator() throws InterruptedException {
+                            for (int i=0;i<10;i++) yield(i); // test implementation
+                        }
+                    });
+                for (int n=0;n<names.size();n++) {
+                    startLatency(factories.get(n), WARMUP);
+                    long[] times = startLatency(factories.get(n), N);
+                    System.out.println(names.get(n)+" "+policy+" time to first element: p50 "+percentile(times, 0.5)
+                            +" ns, p99 "+percentile(times, 0.99)+" ns, p999 "+percentile(times, 0.999)+" ns, max "+times[N-1]+" ns");
+                }
+            }
+        } finally {
+            GeneratorThreads.setWarmThreads(before);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for MappedRecordIterator
+ * @author A.K.
+ */
+public class MappedRecordIteratorTest {
+    private Path file;
+
+    public MappedRecordIteratorTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("yieldlib-records", ".bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    private static List<String> readAll(MappedRecordIterator iterator) {
+        List<String> records = new ArrayList<>();
+        while (iterator.hasNext()) records.add(StandardCharsets.UTF_8.decode(iterator.next()).toString());
+        return records;
+    }
+
+    /**
+     * Lines by '\n' and "\r\n", empty line and last line without '\n'
+     */
+    @Test
+    public void testLines() throws Exception {
+        System.out.println("testLines");
+        Files.write(file, "first\nsecond\r\n\nlast".getBytes(StandardCharsets.UTF_8));
+        MappedRecordIterator iterator = new MappedRecordIterator(file, MappedRecordIterator.Format.LINES);
+        assertEquals(Arrays.asList("first", "second", "", "last"), readAll(iterator));
+    }
+
+    /**
+     * Records are split over small window
+     */
+    @Test
+    public void testSmallWindow() throws Exception {
+        System.out.println("testSmallWindow");
+        StringBuilder text = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i=0;i<1000;i++) {
+            expected.add("line "+i);
+            text.append("line ").append(i).append('\n');
+        }
+        Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+        MappedRecordIterator iterator = new MappedRecordIterator(file, MappedRecordIterator.Format.LINES, 0,
+                StartPolicy.EAGER, PrefetchPolicy.fixed(64), 16);
+        assertEquals(expected, readAll(iterator));
+    }
+
+    /**
+     * Record over window size is error
+     */
+    @Test
+    public void testRecordOverWindow() throws Exception {
+        System.out.println("testRecordOverWindow");
+        Files.write(file, "short\nvery long line over window\n".getBytes(StandardCharsets.UTF_8));
+        MappedRecordIterator iterator = new MappedRecordIterator(file, MappedRecordIterator.Format.LINES, 0,
+                StartPolicy.EAGER, PrefetchPolicy.fixed(64), 16);
+        assertEquals("short", MappedRecordIterator.asCharSequence(iterator.next()).toString());
+        assertThrows(UncheckedIOException.class, ()-> iterator.next());
+    }
+
+    /**
+     * Length-prefixed records, zero length record
+     */
+    @Test
+    public void testLengthPrefixed() throws Exception {
+        System.out.println("testLengthPrefixed");
+        ByteBuffer data = ByteBuffer.allocate(100);
+        for (String s:new String[] {"one", "", "three"}) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            data.putInt(b.length).put(b);
+        }
+        Files.write(file, Arrays.copyOf(data.array(), data.position()));
+        MappedRecordIterator iterator = new MappedRecordIterator(file, MappedRecordIterator.Format.LENGTH_PREFIXED, 0,
+                StartPolicy.LAZY, PrefetchPolicy.fixed(64), 10); // record with length is in next window
+        assertEquals(Arrays.asList("one", "", "three"), readAll(iterator));
+    }
+
+    /**
+     * Fixed-width records, truncated last record is error after full records
+     */
+    @Test
+    public void testFixedWidth() throws Exception {
+        System.out.println("testFixedWidth");
+        Files.write(file, "aaabbbcccd".getBytes(StandardCharsets.UTF_8));
+        MappedRecordIterator iterator = new MappedRecordIterator(file, MappedRecordIterator.Format.FIXED_WIDTH, 3);
+        assertEquals("aaa", MappedRecordIterator.asCharSequence(iterator.next()).toString());
+        assertEquals("bbb", MappedRecordIterator.asCharSequence(iterator.next()).toString());
+        assertEquals("ccc", MappedRecordIterator.asCharSequence(iterator.next()).toString());
+        assertTrue(iterator.hasNext());
+        assertThrows(UncheckedIOException.class, ()-> iterator.next());
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * PRESTARTED iterator take spare thread and start it after fields are set
+     */
+    @Test
+    public void testPrestarted() throws Exception {
+        System.out.println("testPrestarted");
+        Files.write(file, "a\nb\nc\n".getBytes(StandardCharsets.UTF_8));
+        int before = GeneratorThreads.getWarmThreads();
+        GeneratorThreads.setWarmThreads(2);
+        try {
+            long deadline = System.nanoTime()+5_000_000_000L;
+            while (GeneratorThreads.spareThreads()<1 && System.nanoTime()<deadline) Thread.sleep(1);
+            MappedRecordIterator iterator = new MappedRecordIterator(file, MappedRecordIterator.Format.LINES, 0, StartPolicy.PRESTARTED, PrefetchPolicy.fixed(4), MappedRecordIterator.DEFAULT_WINDOW);
+            assertEquals("SpareThread", iterator.generator.getClass().getSimpleName());
+            assertEquals(Arrays.asList("a", "b", "c"), readAll(iterator));
+        } finally {
+            GeneratorThreads.setWarmThreads(before);
+        }
+    }
+
+    /**
+     * Wrong arguments are checked before generator thread is taken
+     */
+    @Test
+    public void testWrongArgumentsNoThread() throws Exception {
+        System.out.println("testWrongArgumentsNoThread");
+        int before = GeneratorThreads.getWarmThreads();
+        GeneratorThreads.setWarmThreads(0); // PRESTARTED create spare thread in constructor
+        try {
+            int threads = Thread.activeCount();
+            for (int i=0;i<20;i++) {
+                assertThrows(IllegalArgumentException.class, ()-> new MappedRecordIterator(file, MappedRecordIterator.Format.FIXED_WIDTH, 0, StartPolicy.PRESTARTED, PrefetchPolicy.fixed(4), MappedRecordIterator.DEFAULT_WINDOW));
+                assertThrows(NullPointerException.class, ()-> new MappedRecordIterator(null, MappedRecordIterator.Format.LINES, 0, StartPolicy.PRESTARTED, PrefetchPolicy.fixed(4), MappedRecordIterator.DEFAULT_WINDOW));
+            }
+            assertTrue(Thread.activeCount()<=threads+2);
+        } finally {
+            GeneratorThreads.setWarmThreads(before);
+        }
+    }
+
+    /**
+     * Record is read-only view, CharSequence view without copy
+     */
+    @Test
+    public void testCharSequence() throws Exception {
+        System.out.println("testCharSequence");
+        Files.write(file, "key=value\n".getBytes(StandardCharsets.UTF_8));
+        MappedRecordIterator iterator = new MappedRecordIterator(file, MappedRecordIterator.Format.LINES);
+        ByteBuffer record = iterator.next();
+        assertTrue(record.isReadOnly());
+        CharSequence chars = MappedRecordIterator.asCharSequence(record);
+        assertEquals(9, chars.length());
+        assertEquals('=', chars.charAt(3));
+        assertEquals("value", chars.subSequence(4, 9).toString());
+        assertFalse(iterator.hasNext());
+    }
+
+    // --- Hight-Load test ---
+
+    /**
+     * Compare with YieldIterator over BufferedReader
+     */
+    @Test
+    public void testLoadLines() throws Exception {
+        System.out.println("testLoadLines");
+        final int N=100_000;
+        StringBuilder text = new StringBuilder();
+        for (int i=0;i<N;i++) text.append("2022-01-01 00:00:00 INFO record number ").append(i).append('\n');
+        Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+
+        long time1=System.nanoTime();
+        YieldIterator<String> reader = new YieldIterator<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                try (BufferedReader in = Files.newBufferedReader(file)) {
+                    String line;
+                    while ((line = in.readLine())!=null) yield(line);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        long summ1=0;
+        while (reader.hasNext()) summ1+=reader.next().length();
+        long time2=System.nanoTime();
+        MappedRecordIterator mapped = new MappedRecordIterator(file, MappedRecordIterator.Format.LINES);
+        long summ2=0;
+        while (mapped.hasNext()) summ2+=mapped.next().remaining();
+        long time3=System.nanoTime();
+        System.out.println("BufferedReader+YieldIterator: "+N+" lines time: "+(time2-time1)+" ("+(time2-time1)/N+" per line)");
+        System.out.println("MappedRecordIterator: "+N+" lines time: "+(time3-time2)+" ("+(time3-time2)/N+" per line)");
+        assertEquals(summ1, summ2);
+    }
+}
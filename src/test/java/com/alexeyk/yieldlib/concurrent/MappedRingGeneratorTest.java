@@ -0,0 +1,287 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for MappedRingGenerator and MappedRingIterator: producer and consumer thread, and producer in other JVM
+ * @author A.K.
+ */
+public class MappedRingGeneratorTest {
+    private Path dir;
+    private Path file;
+
+    public MappedRingGeneratorTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("yieldlib-ring");
+        file = dir.resolve("ring");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (var files = Files.list(dir)) {
+            for (Path p:(Iterable<Path>)files::iterator) Files.deleteIfExists(p);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    private static String utf8(ByteBuffer record) {
+        return StandardCharsets.UTF_8.decode(record).toString();
+    }
+
+    /**
+     * Records "record i" and padding of i%50 chars, then error when fail
+     */
+    private static MappedRingGenerator<String> newGenerator(Path file, int capacity, final int n, final boolean fail) throws Exception {
+        return newGenerator(file, capacity, n, fail, false);
+    }
+
+    /**
+     * @param stall wait forever after records, without end marker
+     */
+    private static MappedRingGenerator<String> newGenerator(Path file, int capacity, final int n, final boolean fail, final boolean stall) throws Exception {
+        return new MappedRingGenerator<>(file, capacity, s -> s.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<n;i++) yield(record(i));
+                if (fail) throw new RuntimeException("Ups, some throuble happend.");
+                if (stall) Thread.sleep(Long.MAX_VALUE);
+            }
+        };
+    }
+
+    private static String record(int i) {
+        return "record "+i+" "+"x".repeat(i%50);
+    }
+
+    /**
+     * Producer in other JVM: args file, count of records, fail, stall (optional)
+     */
+    public static void main(String[] args) throws Exception {
+        boolean stall = args.length>3 && Boolean.parseBoolean(args[3]);
+        try (MappedRingGenerator<String> generator = newGenerator(Paths.get(args[0]), 4096, Integer.parseInt(args[1]), Boolean.parseBoolean(args[2]), stall)) {
+            generator.run();
+        } catch (RuntimeException e) {
+            System.exit(3); // expected generator error
+        }
+    }
+
+    private Process startProducer(int n, boolean fail) throws Exception {
+        return startProducer(n, fail, false);
+    }
+
+    private Process startProducer(int n, boolean fail, boolean stall) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), MappedRingGeneratorTest.class.getName(),
+                file.toString(), String.valueOf(n), String.valueOf(fail), String.valueOf(stall))
+                .redirectError(ProcessBuilder.Redirect.INHERIT).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    /**
+     * Producer thread, small ring: records wrap around and producer wait consumer
+     */
+    @Test
+    public void testSmallRing() throws Exception {
+        System.out.println("testSmallRing");
+        final int N=1000;
+        MappedRingIterator<String> iterator = new MappedRingIterator<>(file, MappedRingGeneratorTest::utf8); // before file is created
+        MappedRingGenerator<String> generator = newGenerator(file, 128, N, false);
+        Thread producer = new Thread(generator);
+        producer.start();
+        for (int i=0;i<N;i++) {
+            assertTrue(iterator.hasNext());
+            assertEquals(record(i), iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+        assertThrows(NoSuchElementException.class, ()-> iterator.next());
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        generator.close();
+        iterator.close();
+    }
+
+    /**
+     * Deserializer error is thrown once, record is skipped and producer is not stalled
+     */
+    @Test
+    public void testDeserializerError() throws Exception {
+        System.out.println("testDeserializerError");
+        final int N=200;
+        MappedRingIterator<String> iterator = new MappedRingIterator<>(file, record -> {
+            String s = utf8(record);
+            if (s.startsWith("record 2 ")) throw new IllegalStateException("bad 2");
+            return s;
+        });
+        MappedRingGenerator<String> generator = newGenerator(file, 128, N, false);
+        Thread producer = new Thread(generator);
+        producer.start();
+        assertEquals(record(0), iterator.next());
+        assertEquals(record(1), iterator.next());
+        assertEquals("bad 2", assertThrows(IllegalStateException.class, ()-> iterator.next()).getMessage());
+        for (int i=3;i<N;i++) assertEquals(record(i), iterator.next());
+        assertFalse(iterator.hasNext());
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        generator.close();
+        iterator.close();
+    }
+
+    /**
+     * Error of generator is thrown once after records, record over capacity is error
+     */
+    @Test
+    public void testError() throws Exception {
+        System.out.println("testError");
+        MappedRingGenerator<String> generator = newGenerator(file, 4096, 3, true);
+        assertThrows(RuntimeException.class, ()-> generator.run()); // ring has place for all
+        MappedRingIterator<String> iterator = new MappedRingIterator<>(file, MappedRingGeneratorTest::utf8);
+        for (int i=0;i<3;i++) assertEquals(record(i), iterator.next());
+        assertTrue(iterator.hasNext());
+        RuntimeException e = assertThrows(RuntimeException.class, ()-> iterator.next());
+        assertTrue(e.getMessage(), e.getMessage().contains("Ups, some throuble happend."));
+        assertFalse(iterator.hasNext());
+        generator.close();
+        iterator.close();
+
+        Files.delete(file);
+        MappedRingGenerator<String> big = newGenerator(file, 64, 0, false);
+        assertThrows(IllegalArgumentException.class, ()-> big.yield("x".repeat(100)));
+        big.close();
+    }
+
+    /**
+     * close() of consumer stop producer: yield() throw InterruptedException
+     */
+    @Test
+    public void testConsumerClose() throws Exception {
+        System.out.println("testConsumerClose");
+        MappedRingGenerator<String> generator = newGenerator(file, 128, Integer.MAX_VALUE, false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                generator.run();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        producer.start();
+        MappedRingIterator<String> iterator = new MappedRingIterator<>(file, MappedRingGeneratorTest::utf8);
+        assertEquals(record(0), iterator.next());
+        iterator.close();
+        assertFalse(iterator.hasNext());
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertNull(failure.get());
+        generator.close();
+    }
+
+    /**
+     * hasNext(timeout) without producer, producer close() without end marker finish consumer
+     */
+    @Test
+    public void testTimeoutAndProducerClose() throws Exception {
+        System.out.println("testTimeoutAndProducerClose");
+        MappedRingIterator<String> iterator = new MappedRingIterator<>(file, MappedRingGeneratorTest::utf8);
+        assertThrows(TimeoutException.class, ()-> iterator.hasNext(Duration.ofMillis(50))); // no file
+        MappedRingGenerator<String> generator = newGenerator(file, 4096, 0, false);
+        generator.yield(record(0));
+        assertTrue(iterator.hasNext(Duration.ofSeconds(5)));
+        assertEquals(record(0), iterator.next());
+        assertThrows(TimeoutException.class, ()-> iterator.hasNext(Duration.ofMillis(50))); // no record
+        generator.close(); // without run()
+        assertFalse(iterator.hasNext(Duration.ofSeconds(5)));
+        iterator.close();
+    }
+
+    // --- Multi-process test ---
+
+    /**
+     * Producer in other JVM
+     */
+    @Test
+    public void testTwoProcess() throws Exception {
+        System.out.println("testTwoProcess");
+        final int N=100_000;
+        Process producer = startProducer(N, false);
+        MappedRingIterator<String> iterator = new MappedRingIterator<>(file, MappedRingGeneratorTest::utf8);
+        long time1=0;
+        int count=0;
+        while (iterator.hasNext()) {
+            if (count==0) time1=System.nanoTime(); // without JVM start
+            assertEquals(record(count), iterator.next());
+            count++;
+        }
+        long time2=System.nanoTime();
+        assertEquals(N, count);
+        assertTrue(producer.waitFor(30, TimeUnit.SECONDS));
+        assertEquals(0, producer.exitValue());
+        iterator.close();
+        System.out.println("Two process: "+N+" records time: "+(time2-time1)+" ("+(time2-time1)/N+" per record)");
+    }
+
+    /**
+     * Error of generator in other JVM
+     */
+    @Test
+    public void testTwoProcessError() throws Exception {
+        System.out.println("testTwoProcessError");
+        Process producer = startProducer(10, true);
+        MappedRingIterator<String> iterator = new MappedRingIterator<>(file, MappedRingGeneratorTest::utf8);
+        for (int i=0;i<10;i++) assertEquals(record(i), iterator.next());
+        RuntimeException e = assertThrows(RuntimeException.class, ()-> iterator.next());
+        assertTrue(e.getMessage(), e.getMessage().contains("Ups, some throuble happend."));
+        assertFalse(iterator.hasNext());
+        assertTrue(producer.waitFor(30, TimeUnit.SECONDS));
+        assertEquals(3, producer.exitValue());
+        iterator.close();
+    }
+
+    /**
+     * Killed producer process is error after its records, stale ring file of it is skipped till new producer replace it
+     */
+    @Test
+    public void testKilledProducer() throws Exception {
+        System.out.println("testKilledProducer");
+        final int N=100;
+        Process producer = startProducer(N, false, true);
+        MappedRingIterator<String> iterator = new MappedRingIterator<>(file, MappedRingGeneratorTest::utf8);
+        for (int i=0;i<N;i++) assertEquals(record(i), iterator.next());
+        producer.destroyForcibly();
+        assertTrue(producer.waitFor(30, TimeUnit.SECONDS));
+        long time1=System.nanoTime();
+        assertTrue(iterator.hasNext()); // error
+        RuntimeException e = assertThrows(RuntimeException.class, ()-> iterator.next());
+        assertTrue(e.getMessage(), e.getMessage().contains("not alive"));
+        assertFalse(iterator.hasNext());
+        iterator.close();
+        System.out.println("Killed producer is found in "+(System.nanoTime()-time1)/1_000_000+" ms");
+
+        MappedRingIterator<String> late = new MappedRingIterator<>(file, MappedRingGeneratorTest::utf8);
+        assertThrows(TimeoutException.class, ()-> late.hasNext(Duration.ofMillis(300))); // stale file
+        Process next = startProducer(3, false);
+        for (int i=0;i<3;i++) assertEquals(record(i), late.next());
+        assertFalse(late.hasNext());
+        assertTrue(next.waitFor(30, TimeUnit.SECONDS));
+        late.close();
+    }
+}
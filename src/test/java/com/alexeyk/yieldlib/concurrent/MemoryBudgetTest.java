@@ -0,0 +1,181 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for MemoryBudget and YieldIteratorQueueImpl with budget
+ * @author A.K.
+ */
+public class MemoryBudgetTest {
+
+    public MemoryBudgetTest() {
+    }
+
+    /**
+     * Acquire wait till release
+     */
+    @Test
+    public void testAcquireRelease() throws Exception {
+        System.out.println("testAcquireRelease");
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(60);
+        budget.acquire(40);
+        assertEquals(100, budget.getUsed());
+        Thread waiter = new Thread(() -> {
+            try {
+                budget.acquire(10);
+            } catch (InterruptedException ie) {
+                // test end
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);// for >99,9%
+        assertTrue(waiter.isAlive());
+        budget.release(60);
+        waiter.join(1000);
+        assertFalse(waiter.isAlive());
+        assertEquals(50, budget.getUsed());
+    }
+
+    /**
+     * Item larger that limit is allowed when nothing in flight
+     */
+    @Test
+    public void testOversizedItem() throws Exception {
+        System.out.println("testOversizedItem");
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(1000);
+        assertEquals(1000, budget.getUsed());
+        budget.release(1000);
+        assertEquals(0, budget.getUsed());
+    }
+
+    /**
+     * Parent budget is used too
+     */
+    @Test
+    public void testParentBudget() throws Exception {
+        System.out.println("testParentBudget");
+        MemoryBudget shared = new MemoryBudget(1000);
+        MemoryBudget budget1 = new MemoryBudget(500, shared);
+        MemoryBudget budget2 = new MemoryBudget(500, shared);
+        budget1.acquire(300);
+        budget2.acquire(200);
+        assertEquals(500, shared.getUsed());
+        budget1.release(300);
+        budget2.release(200);
+        assertEquals(0, shared.getUsed());
+        assertEquals(0, budget1.getUsed());
+    }
+
+    /**
+     * Parent limit is soft: each child get one item when it has nothing else in flight, next item wait parent
+     */
+    @Test
+    public void testParentSoftLimit() throws Exception {
+        System.out.println("testParentSoftLimit");
+        MemoryBudget shared = new MemoryBudget(100);
+        MemoryBudget budget1 = new MemoryBudget(1000, shared);
+        MemoryBudget budget2 = new MemoryBudget(1000, shared);
+        budget1.acquire(80);
+        budget2.acquire(80); // over parent by one item of second child
+        assertEquals(160, shared.getUsed());
+        Thread waiter = new Thread(() -> {
+            try {
+                budget1.acquire(10);
+            } catch (InterruptedException ie) {
+                // test end
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);// for >99,9%
+        assertTrue(waiter.isAlive()); // child has item in flight: parent is hard for it
+        assertFalse(budget2.tryAcquire(10));
+        budget2.release(80);
+        waiter.join(1000);
+        assertFalse(waiter.isAlive());
+        assertEquals(90, shared.getUsed());
+        assertEquals(90, budget1.getUsed());
+        assertEquals(0, budget2.getUsed());
+    }
+
+    /**
+     * Generator should not be over budget
+     */
+    @Test
+    public void testGeneratorBudget() throws Exception {
+        System.out.println("testGeneratorBudget");
+        final int N=200;
+        final MemoryBudget budget = new MemoryBudget(5000);
+        final AtomicLong maxUsed = new AtomicLong();
+        YieldIteratorQueueImpl<byte[]> iterator = new YieldIteratorQueueImpl<>(StartPolicy.EAGER, budget, (byte[] b) -> b.length) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<N;i++) {
+                    yield(new byte[100+(i%10)*200]); // test implementation
+                    maxUsed.accumulateAndGet(budget.getUsed(), Math::max);
+                }
+            }
+        };
+        int count=0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertEquals(N, count);
+        assertTrue("Max used "+maxUsed.get(), maxUsed.get()<=5000);
+        assertEquals(0, budget.getUsed());
+    }
+
+    /**
+     * Budget returned after close
+     */
+    @Test
+    public void testBudgetAfterClose() throws Exception {
+        System.out.println("testBudgetAfterClose");
+        final MemoryBudget budget = new MemoryBudget(1000, new MemoryBudget(10_000));
+        YieldIteratorQueueImpl<byte[]> iterator = new YieldIteratorQueueImpl<>(StartPolicy.EAGER, budget, (byte[] b) -> b.length) {
+            @Override
+            protected void generator() throws InterruptedException {
+                while (true) yield(new byte[300]); // test implementation
+            }
+        };
+        assertTrue(iterator.hasNext());
+        iterator.close();
+        Thread.sleep(100);// for >99,9%
+        assertFalse(iterator.generator.isAlive());
+        assertEquals(0, budget.getUsed());
+        assertEquals(0, budget.parent.getUsed());
+    }
+
+    /**
+     * Chunk use sum of item size
+     */
+    @Test
+    public void testChunkBudget() throws Exception {
+        System.out.println("testChunkBudget");
+        final MemoryBudget budget = new MemoryBudget(1000);
+        YieldIteratorQueueImpl<byte[]> iterator = new YieldIteratorQueueImpl<>(StartPolicy.LAZY, budget, (byte[] b) -> b.length) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<50;i++) yield(new byte[100]); // test implementation
+            }
+        };
+        Iterator<List<byte[]>> chunks = iterator.chunked(4, null);
+        int count=0;
+        while (chunks.hasNext()) {
+            count += chunks.next().size();
+            assertTrue(budget.getUsed()<=1000);
+        }
+        assertEquals(50, count);
+        assertEquals(0, budget.getUsed());
+    }
+}
@@ -19,7 +19,7 @@ public class NativeIteratorExampleTest {
     }
 
     // --- Multi-threading safe test ---
-    //todo MT test
+    // see ConcurrentReadStressTest
     
     // --- Hight-Load test ---
 
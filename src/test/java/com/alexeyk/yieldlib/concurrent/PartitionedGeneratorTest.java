@@ -0,0 +1,239 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for PartitionedGenerator
+ * @author A.K.
+ */
+public class PartitionedGeneratorTest {
+    private static final int KEYS = 37;
+
+    public PartitionedGeneratorTest() {
+    }
+
+    /**
+     * Items 0..n-1, key is i%KEYS
+     */
+    private static PartitionedGenerator<Integer> newGenerator(final int n, int partitions) {
+        return new PartitionedGenerator<>(partitions, i -> i%KEYS) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<n;i++) yield(i); // test implementation
+            }
+        };
+    }
+
+    /**
+     * Each partition read by own thread: key only in one partition, items of key in yield order
+     */
+    @Test
+    public void testPerKeyOrder() throws Exception {
+        System.out.println("testPerKeyOrder");
+        final int N=10_000, P=4;
+        PartitionedGenerator<Integer> generator = newGenerator(N, P);
+        assertEquals(P, generator.partitions());
+        final int[] partitionOfKey = new int[KEYS];
+        final int[] lastOfKey = new int[KEYS];
+        Arrays.fill(partitionOfKey, -1);
+        Arrays.fill(lastOfKey, -1);
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[P];
+        for (int p=0;p<P;p++) {
+            final int partition = p;
+            readers[p] = new Thread(() -> {
+                try {
+                    Iterator<Integer> items = generator.partition(partition);
+                    while (items.hasNext()) {
+                        int i = items.next();
+                        int key = i%KEYS;
+                        synchronized (partitionOfKey) {
+                            if (partitionOfKey[key]==-1) partitionOfKey[key] = partition;
+                            assertEquals("partition of key "+key, partitionOfKey[key], partition);
+                        }
+                        assertTrue("order of key "+key, lastOfKey[key]<i); // key is read by this thread only
+                        lastOfKey[key] = i;
+                        count.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            readers[p].start();
+        }
+        for (Thread t:readers) t.join(30_000);
+        if (failure.get()!=null) throw new AssertionError("Reader fail", failure.get());
+        assertEquals(N, count.get());
+        assertFalse(generator.partition(0).hasNext());
+        assertThrows(NoSuchElementException.class, ()-> generator.partition(0).next());
+    }
+
+    /**
+     * Adapter over YieldIterator, worker keep state of partition without lock
+     */
+    @Test
+    public void testForEachPartition() throws Exception {
+        System.out.println("testForEachPartition");
+        final int N=10_000, P=3;
+        YieldIterator<Integer> source = new YieldIterator<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<N;i++) yield(i); // test implementation
+            }
+        };
+        PartitionedGenerator<Integer> generator = PartitionedGenerator.of(source, P, i -> i%KEYS);
+        final Map<Integer, Long>[] sums = new Map[P];
+        for (int p=0;p<P;p++) sums[p] = new HashMap<>();
+        generator.forEachPartition((i, partition) -> sums[partition].merge(i%KEYS, (long)i, Long::sum));
+        long total=0;
+        for (int p=0;p<P;p++) {
+            for (Map.Entry<Integer, Long> e:sums[p].entrySet()) {
+                assertEquals(p, generator.partitionOf(e.getKey()));
+                total += e.getValue();
+            }
+        }
+        assertEquals((long)(N-1)*N/2, total);
+    }
+
+    /**
+     * Generator error thrown by each partition after its items
+     */
+    @Test
+    public void testErrorEachPartition() throws Exception {
+        System.out.println("testErrorEachPartition");
+        PartitionedGenerator<Integer> generator = new PartitionedGenerator<>(2, i -> i, 4, StartPolicy.LAZY) {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(0);
+                yield(1);
+                throw new RuntimeException("Ups, some throuble happend.");
+            }
+        };
+        for (int p=0;p<2;p++) {
+            Iterator<Integer> items = generator.partition(p);
+            assertTrue(items.hasNext());
+            assertEquals((Integer)p, items.next());
+            assertTrue(items.hasNext());
+            assertThrows(RuntimeException.class, ()-> items.next());
+            assertFalse(items.hasNext());
+        }
+        PartitionedGenerator<Integer> failed = new PartitionedGenerator<>(3, i -> i) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<100;i++) yield(i); // test implementation
+                throw new RuntimeException("Ups, some throuble happend.");
+            }
+        };
+        RuntimeException e = assertThrows(RuntimeException.class, ()-> failed.forEachPartition((i, p) -> {}));
+        assertEquals("Ups, some throuble happend.", e.getMessage());
+    }
+
+    /**
+     * Worker error stop generator and other workers
+     */
+    @Test
+    public void testWorkerError() throws Exception {
+        System.out.println("testWorkerError");
+        PartitionedGenerator<Integer> generator = new PartitionedGenerator<>(4, i -> i) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;;i++) yield(i); // endless
+            }
+        };
+        RuntimeException e = assertThrows(RuntimeException.class, ()-> generator.forEachPartition((i, p) -> {
+            if (i==1000) throw new IllegalStateException("worker fail");
+        }));
+        assertEquals("worker fail", e.getMessage());
+        assertTrue(generator.close(Duration.ofSeconds(1)));
+    }
+
+    /**
+     * close() wake consumer what wait item
+     */
+    @Test
+    public void testCloseWakeConsumer() throws Exception {
+        System.out.println("testCloseWakeConsumer");
+        PartitionedGenerator<Integer> generator = new PartitionedGenerator<>(2, i -> i) {
+            @Override
+            protected void generator() throws InterruptedException {
+                Thread.sleep(10_000); // slow source
+                yield(1);
+            }
+        };
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ie) {
+            }
+            generator.close();
+        });
+        closer.start();
+        long time1=System.nanoTime();
+        assertFalse(generator.partition(1).hasNext());
+        assertTrue(System.nanoTime()-time1<5_000_000_000L);
+        assertThrows(IllegalStateException.class, ()-> new PartitionedGenerator<Integer>(1, i -> i, 4, StartPolicy.MANUAL) {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+            }
+        }.partition(0).hasNext());
+    }
+
+    // --- Hight-Load test ---
+
+    /**
+     * Compare partitions with many readers of one YieldIteratorQueueImpl
+     */
+    @Test
+    public void testLoadPartitions() throws Exception {
+        System.out.println("testLoadPartitions");
+        final int N=200_000, P=4;
+        long time1=System.nanoTime();
+        PartitionedGenerator<Integer> generator = newGenerator(N, P);
+        final AtomicInteger count = new AtomicInteger();
+        generator.forEachPartition((i, p) -> count.incrementAndGet());
+        long time2=System.nanoTime();
+        assertEquals(N, count.get());
+
+        final YieldIteratorQueueImpl<Integer> shared = new YieldIteratorQueueImpl<>(StartPolicy.EAGER, PrefetchPolicy.fixed(64)) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<N;i++) yield(i); // test implementation
+            }
+        };
+        count.set(0);
+        Thread[] readers = new Thread[P];
+        for (int p=0;p<P;p++) {
+            readers[p] = new Thread(() -> {
+                while (true) {
+                    try {
+                        shared.next();
+                    } catch (NoSuchElementException e) {
+                        break;
+                    }
+                    count.incrementAndGet();
+                }
+            });
+            readers[p].start();
+        }
+        for (Thread t:readers) t.join();
+        long time3=System.nanoTime();
+        assertEquals(N, count.get());
+        System.out.println("PartitionedGenerator "+P+" partitions: "+N+" items time: "+(time2-time1)+" ("+(time2-time1)/N+" per item)");
+        System.out.println("YieldIteratorQueueImpl "+P+" readers: "+N+" items time: "+(time3-time2)+" ("+(time3-time2)/N+" per item, no key order)");
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for PoolBlocking: consumer on ForkJoinPool worker
+ * @author A.K.
+ */
+public class PoolBlockingTest {
+
+    public PoolBlockingTest() {
+    }
+
+    /**
+     * Generator what wait task of same pool: pool with one worker is deadlocked without spare worker
+     */
+    @Test
+    public void testSmallPoolNoDeadlock() throws Exception {
+        System.out.println("testSmallPoolNoDeadlock");
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            Iterator<Integer> iterator = new YieldIterator<>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    try {
+                        yield(pool.submit(() -> 42).get()); // test implementation
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            assertEquals((Integer)42, pool.submit(() -> iterator.next()).get(5, TimeUnit.SECONDS));
+            Iterator<Integer> queued = new YieldIteratorQueueImpl<>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    try {
+                        yield(pool.submit(() -> 43).get()); // test implementation
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            assertEquals((Integer)43, pool.submit(() -> queued.next()).get(5, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Sum of slow generator for each stream element
+     */
+    private long parallelSum(ForkJoinPool pool, final boolean queued) throws Exception {
+        return pool.submit(() -> IntStream.range(0, 16).parallel().mapToLong(n -> {
+            Iterator<Integer> iterator = queued ? new YieldIteratorQueueImpl<Integer>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<10;i++) {
+                        Thread.sleep(2); // slow source, for example network
+                        yield(i);
+                    }
+                }
+            } : new YieldIterator<Integer>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<10;i++) {
+                        Thread.sleep(2); // slow source, for example network
+                        yield(i);
+                    }
+                }
+            };
+            long summ=0;
+            while (iterator.hasNext()) summ+=iterator.next();
+            return summ;
+        }).sum()).get(30, TimeUnit.SECONDS);
+    }
+
+    // --- Hight-Load test ---
+
+    /**
+     * Parallel stream read slow generators: compare with and without managed blocking
+     */
+    @Test
+    public void testLoadParallelStream() throws Exception {
+        System.out.println("testLoadParallelStream");
+        ForkJoinPool pool = new ForkJoinPool(2);
+        boolean before = PoolBlocking.enabled;
+        try {
+            for (boolean queued:new boolean[] {false, true}) {
+                String name = queued ? "YieldIteratorQueueImpl" : "YieldIterator";
+                long[] times = new long[2];
+                for (int managed=0;managed<2;managed++) {
+                    PoolBlocking.enabled = managed==1;
+                    long time1=System.nanoTime();
+                    assertEquals(16*45, parallelSum(pool, queued));
+                    times[managed] = System.nanoTime()-time1;
+                }
+                System.out.println(name+" parallel stream of 16 slow generators, pool 2 workers: not managed "+times[0]/1_000_000L
+                        +" ms, managed "+times[1]/1_000_000L+" ms");
+            }
+        } finally {
+            PoolBlocking.enabled = before;
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for ReplayIterable
+ * @author A.K.
+ */
+public class ReplayIterableTest {
+
+    public ReplayIterableTest() {
+    }
+
+    /**
+     * Generator should be run once for many passes
+     */
+    @Test
+    public void testReplaySequence() throws Exception {
+        System.out.println("testReplaySequence");
+        final AtomicInteger runs = new AtomicInteger();
+        ReplayIterable<Integer> replay = new ReplayIterable<>(new YieldIterator<Integer>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                runs.incrementAndGet();
+                for (int i=0;i<10;i++) yield(i); // test implementation
+            }
+        });
+        for (int pass=0;pass<3;pass++) {
+            LinkedList<Integer> actuals = new LinkedList();
+            for (Integer i:replay) actuals.add(i);
+            assertEquals(Arrays.asList(0,1,2,3,4,5,6,7,8,9), actuals);
+        }
+        assertEquals(1, runs.get());
+        assertEquals(10, replay.cachedSize());
+    }
+
+    /**
+     * Late reader catch up from cache and then follow live producer
+     */
+    @Test
+    public void testLateReader() throws Exception {
+        System.out.println("testLateReader");
+        ReplayIterable<Integer> replay = new ReplayIterable<>(new YieldIteratorQueueImpl<Integer>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<10;i++) yield(i); // test implementation
+            }
+        });
+        Iterator<Integer> first = replay.iterator();
+        for (int i=0;i<5;i++) assertEquals((Integer)i, first.next());
+        Iterator<Integer> late = replay.iterator();
+        LinkedList<Integer> actuals = new LinkedList();
+        while (late.hasNext()) actuals.add(late.next());
+        assertEquals(Arrays.asList(0,1,2,3,4,5,6,7,8,9), actuals);
+        for (int i=5;i<10;i++) assertEquals((Integer)i, first.next());
+        assertFalse(first.hasNext());
+    }
+
+    /**
+     * Concurrent readers take all items
+     */
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        System.out.println("testConcurrentReaders");
+        final int N=1000;
+        ReplayIterable<Integer> replay = new ReplayIterable<>(new YieldIterator<Integer>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<N;i++) yield(i); // test implementation
+            }
+        });
+        final long[] summs = new long[4];
+        Thread[] readers = new Thread[summs.length];
+        for (int r=0;r<readers.length;r++) {
+            final int rx = r;
+            readers[r] = new Thread(() -> {
+                for (Integer i:replay) summs[rx]+=i;
+            });
+            readers[r].start();
+        }
+        for (Thread t:readers) t.join();
+        long Nx = N-1; // begin from 0
+        for (long s:summs) assertEquals(Nx*(Nx+1)/2L, s);
+    }
+
+    /**
+     * Bounded cache evict old items
+     */
+    @Test
+    public void testEviction() throws Exception {
+        System.out.println("testEviction");
+        ReplayIterable<Integer> replay = new ReplayIterable<>(new YieldIterator<Integer>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<10;i++) yield(i); // test implementation
+            }
+        }, 4);
+        Iterator<Integer> first = replay.iterator();
+        for (int i=0;i<10;i++) assertEquals((Integer)i, first.next());
+        assertEquals(4, replay.cachedSize());
+        assertThrows(IllegalStateException.class, ()-> replay.iterator().next());
+    }
+
+    /**
+     * Error from generator replayed for every reader
+     */
+    @Test
+    public void testReplayError() throws Exception {
+        System.out.println("testReplayError");
+        ReplayIterable<Integer> replay = new ReplayIterable<>(new YieldIterator<Integer>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+                throw new RuntimeException("Ups, some throuble happend.");
+            }
+        });
+        for (int pass=0;pass<2;pass++) {
+            Iterator<Integer> iterator = replay.iterator();
+            assertEquals((Integer)1, iterator.next());
+            assertTrue(iterator.hasNext());
+            assertEquals("Ups, some throuble happend.", assertThrows(RuntimeException.class, ()-> iterator.next()).getMessage());
+            assertFalse(iterator.hasNext());
+            assertThrows(NoSuchElementException.class, ()-> iterator.next());
+        }
+    }
+
+    /**
+     * Interrupt of pulling reader is not cached, other reader read all items
+     */
+    @Test
+    public void testInterruptedReader() throws Exception {
+        System.out.println("testInterruptedReader");
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        ReplayIterable<Integer> replay = new ReplayIterable<>(new YieldIterator<Integer>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                release.await();
+                for (int i=0;i<3;i++) yield(i); // test implementation
+            }
+        });
+        AtomicInteger interrupted = new AtomicInteger();
+        Thread reader = new Thread(()-> {
+            try {
+                replay.iterator().next();
+            } catch (RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) interrupted.incrementAndGet();
+            }
+        });
+        reader.start();
+        Thread.sleep(100);
+        reader.interrupt();
+        reader.join(5000);
+        assertEquals(1, interrupted.get());
+        release.countDown();
+        Iterator<Integer> iterator = replay.iterator();
+        for (int i=0;i<3;i++) assertEquals((Integer)i, iterator.next());
+        assertFalse(iterator.hasNext());
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for YieldIteratorAdaptiveImpl
+ * @author A.K.
+ */
+public class YieldIteratorAdaptiveImplTest {
+
+    public YieldIteratorAdaptiveImplTest() {
+    }
+
+    // --- Simple iteration test ---
+
+    /**
+     * Check simple sequence generated in each fixed mode
+     */
+    @Test
+    public void testSimpleSequence() throws Exception {
+        System.out.println("testSimpleSequence");
+        for (YieldIteratorAdaptiveImpl.Mode mode:YieldIteratorAdaptiveImpl.Mode.values()) {
+            YieldIteratorAdaptiveImpl<Integer> iterator = new YieldIteratorAdaptiveImpl<>(StartPolicy.EAGER, mode, false) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<10;i++) yield(i); // test implementation
+                }
+            };
+            LinkedList<Integer> actuals = new LinkedList();
+            while (iterator.hasNext()) actuals.add(iterator.next());
+            assertEquals(Arrays.asList(0,1,2,3,4,5,6,7,8,9), actuals);
+            assertThrows(NoSuchElementException.class, ()-> iterator.next());
+            assertEquals(mode, iterator.getMode());
+            Thread.sleep(100);// for >99,9%
+            assertFalse(iterator.generator.isAlive()); // verify implementation stop.
+        }
+    }
+
+    /**
+     * Error of generator after items
+     */
+    @Test
+    public void testException() throws Exception {
+        System.out.println("testException");
+        YieldIteratorAdaptiveImpl<Integer> iterator = new YieldIteratorAdaptiveImpl<>(StartPolicy.EAGER, YieldIteratorAdaptiveImpl.Mode.BATCHED, false) {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+                yield(2);
+                throw new RuntimeException("Ups, some throuble happend.");
+            }
+        };
+        assertEquals((Integer)1, iterator.next());
+        assertEquals((Integer)2, iterator.next());
+        assertTrue(iterator.hasNext());
+        assertEquals("Ups, some throuble happend.", assertThrows(RuntimeException.class, ()-> iterator.next()).getMessage());
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Close wake up consumer and stop generator
+     */
+    @Test
+    public void testClose() throws Exception {
+        System.out.println("testClose");
+        YieldIteratorAdaptiveImpl<Integer> iterator = new YieldIteratorAdaptiveImpl<>(StartPolicy.LAZY) {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+                Thread.sleep(100_000); // stalled
+                yield(2);
+            }
+        };
+        assertFalse(iterator.generator.isAlive()); // lazy
+        assertEquals((Integer)1, iterator.next());
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ie) {
+                // test end
+            }
+            iterator.close();
+        });
+        closer.start();
+        assertFalse(iterator.hasNext());
+        closer.join();
+        assertTrue(iterator.close(Duration.ofSeconds(1)));
+    }
+
+    /**
+     * BATCHED: consumer take not full batch while generator stall, generator wait reply after consumer read items
+     */
+    @Test(timeout=10_000)
+    public void testBatchedStall() throws Exception {
+        System.out.println("testBatchedStall");
+        final Object reply = new Object();
+        final int[] replied = new int[1];
+        YieldIteratorAdaptiveImpl<Integer> iterator = new YieldIteratorAdaptiveImpl<>(StartPolicy.EAGER, YieldIteratorAdaptiveImpl.Mode.BATCHED, false) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int round=0;round<3;round++) {
+                    for (int i=0;i<3;i++) yield(round*3+i); // tail of burst
+                    synchronized (reply) { // wait reply of consumer after it read burst
+                        while (replied[0]<=round) reply.wait();
+                    }
+                }
+            }
+        };
+        assertTrue(iterator.getBatchSize()>3);
+        for (int round=0;round<3;round++) {
+            for (int i=0;i<3;i++) assertEquals((Integer)(round*3+i), iterator.next());
+            synchronized (reply) {
+                replied[0]++;
+                reply.notifyAll();
+            }
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    // --- Adaptation test ---
+
+    /**
+     * Cheap generator and consumer: handoff by batch
+     */
+    @Test
+    public void testAdaptBatched() throws Exception {
+        System.out.println("testAdaptBatched");
+        final int N=100_000;
+        YieldIteratorAdaptiveImpl<Integer> iterator = new YieldIteratorAdaptiveImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<N;i++) yield(i); // test implementation
+            }
+        };
+        long summ=0;
+        while (iterator.hasNext()) summ+=iterator.next();
+        long Nx = N-1; // begin from 0
+        assertEquals(Nx*(Nx+1)/2L, summ);
+        System.out.println("Mode "+iterator.getMode()+" batch="+iterator.getBatchSize()+" spin="+iterator.isSpinWait()
+                +" producer="+iterator.getProducerNanosPerItem()+"ns consumer="+iterator.getConsumerNanosPerItem()+"ns");
+        assertEquals(YieldIteratorAdaptiveImpl.Mode.BATCHED, iterator.getMode());
+        assertTrue(iterator.getBatchSize()>1);
+        assertEquals(1, iterator.getModeSwitches());
+    }
+
+    /**
+     * Slow generator: each item is handed at once
+     */
+    @Test
+    public void testAdaptQueue() throws Exception {
+        System.out.println("testAdaptQueue");
+        YieldIteratorAdaptiveImpl<Integer> iterator = new YieldIteratorAdaptiveImpl<>(StartPolicy.EAGER, YieldIteratorAdaptiveImpl.Mode.BATCHED, true) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<100;i++) {
+                    Thread.sleep(1); // expensive item
+                    yield(i);
+                }
+            }
+        };
+        int count=0;
+        while (iterator.hasNext()) {
+            assertEquals((Integer)count, iterator.next());
+            count++;
+        }
+        assertEquals(100, count);
+        System.out.println("Mode "+iterator.getMode()+" producer="+iterator.getProducerNanosPerItem()+"ns consumer="+iterator.getConsumerNanosPerItem()+"ns");
+        assertEquals(YieldIteratorAdaptiveImpl.Mode.QUEUE, iterator.getMode());
+        assertEquals(1, iterator.getBatchSize());
+    }
+
+    /**
+     * Slow consumer: generator is not ahead more that one item
+     */
+    @Test
+    public void testAdaptLockstep() throws Exception {
+        System.out.println("testAdaptLockstep");
+        YieldIteratorAdaptiveImpl<Integer> iterator = new YieldIteratorAdaptiveImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<100;i++) yield(i); // test implementation
+            }
+        };
+        int count=0;
+        while (iterator.hasNext()) {
+            assertEquals((Integer)count, iterator.next());
+            count++;
+            Thread.sleep(1); // expensive consumer
+        }
+        assertEquals(100, count);
+        System.out.println("Mode "+iterator.getMode()+" producer="+iterator.getProducerNanosPerItem()+"ns consumer="+iterator.getConsumerNanosPerItem()+"ns");
+        assertEquals(YieldIteratorAdaptiveImpl.Mode.LOCKSTEP, iterator.getMode());
+    }
+
+    /**
+     * Not adaptive iterator keep initial mode
+     */
+    @Test
+    public void testFixedMode() throws Exception {
+        System.out.println("testFixedMode");
+        YieldIteratorAdaptiveImpl<Integer> iterator = new YieldIteratorAdaptiveImpl<>(StartPolicy.EAGER, YieldIteratorAdaptiveImpl.Mode.LOCKSTEP, false) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<10_000;i++) yield(i); // test implementation
+            }
+        };
+        while (iterator.hasNext()) iterator.next();
+        assertEquals(YieldIteratorAdaptiveImpl.Mode.LOCKSTEP, iterator.getMode());
+        assertEquals(0, iterator.getModeSwitches());
+    }
+
+    // --- Hight-Load test ---
+    @Test
+    public void testLoadSimpleSequence1() throws Exception {
+        System.out.println("testLoadSimpleSequence1");
+        final int N=100_000;
+        for (YieldIteratorAdaptiveImpl.Mode mode:YieldIteratorAdaptiveImpl.Mode.values()) {
+            long time1=System.nanoTime();
+            YieldIteratorAdaptiveImpl<Integer> iterator = new YieldIteratorAdaptiveImpl<>(StartPolicy.EAGER, mode, false) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<N;i++) yield(i); // test implementation
+                }
+            };
+            long summ=0;
+            while (iterator.hasNext()) summ+=iterator.next();
+            long time2=System.nanoTime();
+            System.out.println(mode+": iterated "+N+" number time: "+ (time2-time1) +" ("+ (time2-time1)/N +" per yield call)");
+            long Nx = N-1; // begin from 0
+            assertEquals(Nx*(Nx+1)/2L, summ);
+        }
+    }
+}
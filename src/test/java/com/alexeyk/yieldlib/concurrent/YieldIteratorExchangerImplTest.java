@@ -0,0 +1,219 @@
+/*
+ * License GNU GPL v3
+ * (C) A.K. 2022
+ */
+package com.alexeyk.yieldlib.concurrent;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for YieldIteratorExchangerImpl
+ * @author A.K.
+ */
+public class YieldIteratorExchangerImplTest {
+
+    public YieldIteratorExchangerImplTest() {
+    }
+
+    // --- Simple iteration test ---
+
+    /**
+     * Check simple sequence generated, more that one buffer
+     */
+    @Test
+    public void testSimpleSequence() throws Exception {
+        System.out.println("testSimpleSequence");
+        YieldIteratorExchangerImpl<Integer> iterator = new YieldIteratorExchangerImpl<>(4) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<10;i++) yield(i); // test implementation
+            }
+        };
+        LinkedList<Integer> actuals = new LinkedList();
+        while (iterator.hasNext()) actuals.add(iterator.next());
+        assertEquals(Arrays.asList(0,1,2,3,4,5,6,7,8,9), actuals);
+        assertThrows(NoSuchElementException.class, ()-> iterator.next());
+        Thread.sleep(100);// for >99,9%
+        assertFalse(iterator.generator.isAlive()); // verify implementation stop.
+    }
+
+    /**
+     * Error of generator after items
+     */
+    @Test
+    public void testException() throws Exception {
+        System.out.println("testException");
+        YieldIteratorExchangerImpl<Integer> iterator = new YieldIteratorExchangerImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+                yield(2);
+                throw new RuntimeException("Ups, some throuble happend.");
+            }
+        };
+        assertEquals((Integer)1, iterator.next());
+        assertEquals((Integer)2, iterator.next());
+        assertTrue(iterator.hasNext());
+        assertEquals("Ups, some throuble happend.", assertThrows(RuntimeException.class, ()-> iterator.next()).getMessage());
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Slow generator hand not full buffer to waiting consumer
+     */
+    @Test
+    public void testSlowGenerator() throws Exception {
+        System.out.println("testSlowGenerator");
+        YieldIteratorExchangerImpl<Integer> iterator = new YieldIteratorExchangerImpl<>(1000) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<3;i++) {
+                    Thread.sleep(50); // slow source
+                    yield(i);
+                }
+                Thread.sleep(100_000); // stalled
+            }
+        };
+        assertEquals((Integer)0, iterator.next());
+        assertEquals((Integer)1, iterator.next());
+        assertEquals((Integer)2, iterator.next());
+        assertTrue(iterator.close(Duration.ofSeconds(5)));
+    }
+
+    /**
+     * Default iterator deliver item what generator yield before it block
+     */
+    @Test
+    public void testDefaultNotStranded() throws Exception {
+        System.out.println("testDefaultNotStranded");
+        final Object reply = new Object();
+        final boolean[] replied = new boolean[1];
+        YieldIteratorExchangerImpl<Integer> iterator = new YieldIteratorExchangerImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+                synchronized (reply) { // wait reply of consumer after it read item
+                    while (!replied[0]) reply.wait();
+                }
+                yield(2);
+            }
+        };
+        assertEquals(1, iterator.bufferSize);
+        assertEquals((Integer)1, iterator.next());
+        synchronized (reply) {
+            replied[0] = true;
+            reply.notifyAll();
+        }
+        assertEquals((Integer)2, iterator.next());
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Close wake up consumer and stop generator
+     */
+    @Test
+    public void testClose() throws Exception {
+        System.out.println("testClose");
+        YieldIteratorExchangerImpl<Integer> iterator = new YieldIteratorExchangerImpl<>(StartPolicy.LAZY, 1) { // rendezvous: item is not in buffer while generator stall
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+                Thread.sleep(100_000); // stalled
+                yield(2);
+            }
+        };
+        assertFalse(iterator.generator.isAlive()); // lazy
+        assertEquals((Integer)1, iterator.next());
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ie) {
+                // test end
+            }
+            iterator.close();
+        });
+        closer.start();
+        assertFalse(iterator.hasNext());
+        closer.join();
+        iterator.generator.join(1000);
+        assertFalse(iterator.generator.isAlive());
+    }
+
+    // --- Hight-Load test ---
+    @Test
+    public void testLoadSimpleSequence1() throws Exception {
+        System.out.println("testLoadSimpleSequence1");
+        final int N=10_000;
+        long time1=System.nanoTime(); // nanoTime() 10^9s or currentTimeMillis() 10^3s
+        YieldIteratorExchangerImpl<Integer> iterator = new YieldIteratorExchangerImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<N;i++) yield(i); // test implementation
+            }
+        };
+        int count=0;
+        long summ=0;
+        // Collect iterated data
+        while (iterator.hasNext()) {
+            count++;
+            summ+=iterator.next();
+        }
+        long time2=System.nanoTime();
+        System.out.println("Iterated "+N+" number time: "+ (time2-time1) +" ("+ (time2-time1)/N +" per yield call)");
+        // verify
+        assertEquals(N, count);
+        long Nx = N-1; // begin from 0
+        assertEquals(Nx*(Nx+1)/2L, summ);
+    }
+
+    /**
+     * Compare with YieldIterator and YieldIteratorQueueImpl on same sequence
+     */
+    @Test
+    public void testLoadCompare() throws Exception {
+        System.out.println("testLoadCompare");
+        final int N=100_000;
+        Iterator<Integer>[] iterators = new Iterator[] {
+            new YieldIterator<Integer>(StartPolicy.LAZY) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<N;i++) yield(i); // test implementation
+                }
+            },
+            new YieldIteratorQueueImpl<Integer>(StartPolicy.LAZY) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<N;i++) yield(i); // test implementation
+                }
+            },
+            new YieldIteratorExchangerImpl<Integer>(StartPolicy.LAZY, 1) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<N;i++) yield(i); // test implementation
+                }
+            },
+            new YieldIteratorExchangerImpl<Integer>(StartPolicy.LAZY, 256) {
+                @Override
+                protected void generator() throws InterruptedException {
+                    for (int i=0;i<N;i++) yield(i); // test implementation
+                }
+            }
+        };
+        String[] names = {"YieldIterator", "YieldIteratorQueueImpl", "YieldIteratorExchangerImpl(1)", "YieldIteratorExchangerImpl(256)"};
+        for (int n=0;n<iterators.length;n++) {
+            long time1=System.nanoTime();
+            long summ=0;
+            while (iterators[n].hasNext()) summ+=iterators[n].next();
+            long time2=System.nanoTime();
+            System.out.println(names[n]+": iterated "+N+" number time: "+ (time2-time1) +" ("+ (time2-time1)/N +" per yield call)");
+            long Nx = N-1; // begin from 0
+            assertEquals(Nx*(Nx+1)/2L, summ);
+        }
+    }
+}
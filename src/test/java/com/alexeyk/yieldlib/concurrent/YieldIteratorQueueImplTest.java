@@ -4,9 +4,19 @@
  */
 package com.alexeyk.yieldlib.concurrent;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -338,6 +348,658 @@ public class YieldIteratorQueueImplTest {
         //assertFalse(internalThread.isAlive()); // verify implementation stop.
     }*/
     
+    // --- Start and prefetch policy test ---
+
+    /**
+     * Lazy start: thread is not started till first read
+     */
+    @Test
+    public void testLazyStart() throws Exception {
+        System.out.println("testLazyStart");
+        final AtomicInteger runs = new AtomicInteger();
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.LAZY) {
+            @Override
+            protected void generator() throws InterruptedException {
+                runs.incrementAndGet();
+                for (int i=0;i<3;i++) yield(i); // test implementation
+            }
+        };
+        Thread.sleep(100);// for >99,9%
+        assertEquals(0, runs.get());
+        assertFalse(iterator.generator.isAlive());
+        LinkedList<Integer> actuals = new LinkedList();
+        while (iterator.hasNext()) actuals.add(iterator.next());
+        assertEquals(Arrays.asList(0,1,2), actuals);
+        assertEquals(1, runs.get());
+    }
+
+    /**
+     * Manual start: read before launch() is error
+     */
+    @Test
+    public void testManualStart() throws Exception {
+        System.out.println("testManualStart");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.MANUAL) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<3;i++) yield(i); // test implementation
+            }
+        };
+        assertThrows(IllegalStateException.class, ()-> iterator.hasNext());
+        iterator.launch();
+        iterator.launch(); // ignored
+        LinkedList<Integer> actuals = new LinkedList();
+        while (iterator.hasNext()) actuals.add(iterator.next());
+        assertEquals(Arrays.asList(0,1,2), actuals);
+    }
+
+    /**
+     * Lockstep: generator does not run ahead of consumer
+     */
+    @Test
+    public void testLockstepPrefetch() throws Exception {
+        System.out.println("testLockstepPrefetch");
+        final AtomicInteger produced = new AtomicInteger();
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.EAGER, PrefetchPolicy.NONE) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<5;i++) {
+                    produced.incrementAndGet();
+                    yield(i); // test implementation
+                }
+            }
+        };
+        Thread.sleep(100);// for >99,9%
+        assertEquals(0, produced.get());
+        for (int i=0;i<5;i++) {
+            assertTrue(iterator.hasNext());
+            Thread.sleep(20);
+            assertEquals(i+1, produced.get());
+            assertEquals((Integer)i, iterator.next());
+            Thread.sleep(20);
+            assertEquals(i+1, produced.get());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Adaptive prefetch queue
+     */
+    @Test
+    public void testAdaptivePrefetch() throws Exception {
+        System.out.println("testAdaptivePrefetch");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.EAGER, PrefetchPolicy.adaptive(1, 16)) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<100;i++) yield(i); // test implementation
+            }
+        };
+        long summ=0;
+        while (iterator.hasNext()) summ+=iterator.next();
+        assertEquals(99L*100L/2L, summ);
+        int capacity = ((AdaptiveBlockingQueue)iterator.yieldWindow).getCapacity();
+        assertTrue(capacity>=1 && capacity<=16);
+    }
+
+    // --- Timeout test ---
+
+    /**
+     * poll() with timeout return null for slow generator
+     */
+    @Test
+    public void testPollTimeout() throws Exception {
+        System.out.println("testPollTimeout");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+                Thread.sleep(300);
+                yield(2);
+            }
+        };
+        assertEquals((Integer)1, iterator.poll(1, TimeUnit.SECONDS));
+        assertNull(iterator.poll(10, TimeUnit.MILLISECONDS));
+        assertThrows(TimeoutException.class, ()-> iterator.hasNext(Duration.ofMillis(10)));
+        assertTrue(iterator.hasNext(Duration.ofSeconds(5)));
+        assertEquals((Integer)2, iterator.poll(1, TimeUnit.SECONDS));
+        assertFalse(iterator.hasNext(Duration.ofSeconds(5)));
+        assertThrows(NoSuchElementException.class, ()-> iterator.poll(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * hasNext(timeout) and peek(k) block without spin: waiting thread does not use CPU
+     */
+    @Test
+    public void testTimedWaitNoSpin() throws Exception {
+        System.out.println("testTimedWaitNoSpin");
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        final Object go = new Object();
+        final boolean[] resumed = new boolean[1];
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.EAGER, PrefetchPolicy.fixed(4)) {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(0);
+                synchronized (go) { // stall till consumer ask
+                    while (!resumed[0]) go.wait();
+                }
+                yield(1);
+                Thread.sleep(200); // slow
+                yield(2);
+            }
+        };
+        assertEquals((Integer)0, iterator.next());
+        long cpu1 = mx.getCurrentThreadCpuTime();
+        assertThrows(TimeoutException.class, ()-> iterator.hasNext(Duration.ofMillis(300)));
+        long cpu2 = mx.getCurrentThreadCpuTime();
+        synchronized (go) {
+            resumed[0] = true;
+            go.notifyAll();
+        }
+        assertEquals((Integer)2, iterator.peek(1)); // wait generator put
+        long cpu3 = mx.getCurrentThreadCpuTime();
+        System.out.println("CPU time of hasNext(300 ms) "+(cpu2-cpu1)/1000+" us, peek(1) "+(cpu3-cpu2)/1000+" us");
+        assertTrue("hasNext(timeout) spin "+(cpu2-cpu1), cpu2-cpu1<100_000_000L);
+        assertTrue("peek(k) spin "+(cpu3-cpu2), cpu3-cpu2<100_000_000L);
+        assertTrue(iterator.hasNext(Duration.ofSeconds(5)));
+        assertEquals((Integer)1, iterator.next());
+        assertEquals((Integer)2, iterator.next());
+        assertFalse(iterator.hasNext(Duration.ofSeconds(5)));
+    }
+
+    /**
+     * Deadline does not let stalled generator block consumer
+     */
+    @Test
+    public void testDeadline() throws Exception {
+        System.out.println("testDeadline");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+                Thread.sleep(100_000); // stalled
+                yield(2);
+            }
+        };
+        iterator.setDeadline(Duration.ofMillis(100));
+        assertEquals((Integer)1, iterator.next());
+        long time1=System.nanoTime();
+        RuntimeException e = assertThrows(RuntimeException.class, ()-> iterator.next());
+        assertTrue(e.getCause() instanceof TimeoutException);
+        assertThrows(RuntimeException.class, ()-> iterator.hasNext()); // fail fast
+        long time2=System.nanoTime();
+        assertTrue(time2-time1 < 1_000_000_000L);
+        iterator.close();
+    }
+
+    /**
+     * Close wake up consumer what wait slow generator
+     */
+    @Test
+    public void testCloseWakeConsumer() throws Exception {
+        System.out.println("testCloseWakeConsumer");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+                Thread.sleep(100_000); // stalled
+                yield(2);
+            }
+        };
+        assertEquals((Integer)1, iterator.next());
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ie) {
+                // test end
+            }
+            iterator.close();
+        });
+        closer.start();
+        long time1=System.nanoTime();
+        assertThrows(NoSuchElementException.class, ()-> iterator.next());
+        assertTrue(System.nanoTime()-time1 < 5_000_000_000L);
+        assertFalse(iterator.hasNext());
+        closer.join();
+    }
+
+    /**
+     * close(timeout) wait generator exit, generator what ignore interrupt is stopped by yield()
+     */
+    @Test
+    public void testCloseAndJoin() throws Exception {
+        System.out.println("testCloseAndJoin");
+        final AtomicInteger yieldAfterClose = new AtomicInteger();
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;;i++) try {
+                    yield(i);
+                } catch (InterruptedException ie) { // bad generator
+                    if (yieldAfterClose.incrementAndGet()>3) throw ie;
+                }
+            }
+        };
+        assertEquals((Integer)0, iterator.next());
+        assertTrue(iterator.close(Duration.ofSeconds(5)));
+        assertFalse(iterator.generator.isAlive());
+        assertFalse(iterator.hasNext());
+        assertTrue(iterator.close(Duration.ofSeconds(5))); // repeated close
+    }
+
+    /**
+     * Closed not started generator never start
+     */
+    @Test
+    public void testCloseNotStarted() throws Exception {
+        System.out.println("testCloseNotStarted");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.MANUAL) {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+            }
+        };
+        iterator.close();
+        iterator.launch();
+        assertFalse(iterator.hasNext());
+        assertFalse(iterator.generator.isAlive());
+    }
+
+    /**
+     * Skip items
+     */
+    @Test
+    public void testSkip() throws Exception {
+        System.out.println("testSkip");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<20;i++) yield(i); // test implementation
+            }
+        };
+        assertEquals((Integer)0, iterator.next());
+        Thread.sleep(100);// for >99,9%
+        iterator.skip(5); // prefetched items and next
+        assertEquals((Integer)6, iterator.next());
+        iterator.skip(0);
+        assertEquals((Integer)7, iterator.next());
+        iterator.skip(10);
+        LinkedList<Integer> actuals = new LinkedList();
+        while (iterator.hasNext()) actuals.add(iterator.next());
+        assertEquals(Arrays.asList(18,19), actuals);
+        iterator.skip(100); // after end
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Generator jump ahead by claimSkip()
+     */
+    @Test
+    public void testSkipHook() throws Exception {
+        System.out.println("testSkipHook");
+        final int N=1_000_000;
+        final AtomicInteger yieldCount = new AtomicInteger();
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<N;i++) {
+                    i += claimSkip(); // seek
+                    if (i>=N) break;
+                    yieldCount.incrementAndGet();
+                    yield(i);
+                }
+            }
+        };
+        assertEquals((Integer)0, iterator.next());
+        iterator.skip(N-11);
+        LinkedList<Integer> actuals = new LinkedList();
+        while (iterator.hasNext()) actuals.add(iterator.next());
+        assertEquals(10, actuals.size());
+        assertEquals((Integer)(N-10), actuals.getFirst());
+        assertEquals((Integer)(N-1), actuals.getLast());
+        assertTrue("Yield count "+yieldCount.get(), yieldCount.get()<100);
+    }
+
+    /**
+     * Peek does not take item
+     */
+    @Test
+    public void testPeek() throws Exception {
+        System.out.println("testPeek");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<3;i++) yield(i); // test implementation
+                throw new RuntimeException("Ups, some throuble happend.");
+            }
+        };
+        assertEquals((Integer)0, iterator.peek());
+        assertEquals((Integer)0, iterator.peek(0));
+        assertEquals((Integer)0, iterator.next());
+        assertEquals((Integer)1, iterator.peek());
+        assertEquals((Integer)1, iterator.next());
+        assertEquals((Integer)2, iterator.next());
+        assertThrows(RuntimeException.class, ()-> iterator.peek());
+        assertThrows(RuntimeException.class, ()-> iterator.next()); // error is not lost by peek
+        assertThrows(NoSuchElementException.class, ()-> iterator.peek());
+    }
+
+    /**
+     * Lookahead by queue
+     */
+    @Test
+    public void testPeekLookahead() throws Exception {
+        System.out.println("testPeekLookahead");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.EAGER, PrefetchPolicy.fixed(4)) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<6;i++) yield(i); // test implementation
+            }
+        };
+        assertEquals(4, iterator.getLookaheadLimit());
+        assertEquals((Integer)3, iterator.peek(3));
+        assertEquals((Integer)1, iterator.peek(1));
+        assertThrows(IllegalArgumentException.class, ()-> iterator.peek(4));
+        assertEquals((Integer)0, iterator.next());
+        assertEquals((Integer)1, iterator.next());
+        assertEquals((Integer)5, iterator.peek(3));
+        iterator.skip(1);
+        assertEquals((Integer)3, iterator.peek());
+        assertThrows(NoSuchElementException.class, ()-> iterator.peek(3)); // only 3,4,5
+        LinkedList<Integer> actuals = new LinkedList();
+        while (iterator.hasNext()) actuals.add(iterator.next());
+        assertEquals(Arrays.asList(3,4,5), actuals);
+    }
+
+    /**
+     * Lookahead with MemoryBudget fail fast when generator wait budget
+     */
+    @Test
+    public void testPeekLookaheadBudget() throws Exception {
+        System.out.println("testPeekLookaheadBudget");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.EAGER, new MemoryBudget(100), item -> 40L) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<10;i++) yield(i); // test implementation
+            }
+        };
+        assertEquals((Integer)1, iterator.peek(1)); // 80 bytes in flight
+        assertThrows(IllegalStateException.class, ()-> iterator.peek(9));
+        LinkedList<Integer> actuals = new LinkedList();
+        while (iterator.hasNext()) actuals.add(iterator.next());
+        assertEquals(Arrays.asList(0,1,2,3,4,5,6,7,8,9), actuals);
+    }
+
+    /**
+     * yieldFrom() collection and nested generator
+     */
+    @Test
+    public void testYieldFrom() throws Exception {
+        System.out.println("testYieldFrom");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(0);
+                yieldFrom(Arrays.asList(1,2,3,4,5));
+                yieldFrom(new ArrayList<Integer>()); // empty
+                yieldFrom(new YieldIteratorQueueImpl<Integer>() {
+                    @Override
+                    protected void generator() throws InterruptedException {
+                        for (int i=6;i<9;i++) yield(i); // nested
+                    }
+                });
+                yieldFrom(Stream.of(9,10,11));
+                yield(12);
+            }
+        };
+        assertEquals((Integer)0, iterator.next());
+        assertEquals((Integer)1, iterator.peek());
+        assertEquals((Integer)1, iterator.next());
+        iterator.skip(2);
+        LinkedList<Integer> actuals = new LinkedList();
+        while (iterator.hasNext()) actuals.add(iterator.next());
+        assertEquals(Arrays.asList(4,5,6,7,8,9,10,11,12), actuals);
+    }
+
+    /**
+     * yieldFrom() with AdaptiveBlockingQueue: drained source is removed from queue
+     */
+    @Test(timeout=10_000)
+    public void testYieldFromAdaptive() throws Exception {
+        System.out.println("testYieldFromAdaptive");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.EAGER, PrefetchPolicy.adaptive(2, 8)) {
+            @Override
+            protected void generator() throws InterruptedException {
+                yieldFrom(Arrays.asList(1,2,3));
+                yieldFrom(new ArrayList<Integer>()); // empty
+                yield(4);
+                yieldFrom(Stream.of(5,6));
+            }
+        };
+        LinkedList<Integer> actuals = new LinkedList();
+        while (iterator.hasNext()) actuals.add(iterator.next());
+        assertEquals(Arrays.asList(1,2,3,4,5,6), actuals);
+    }
+
+    /**
+     * Negative timeout does not wait, as BlockingQueue.poll()
+     */
+    @Test
+    public void testNegativeTimeout() throws Exception {
+        System.out.println("testNegativeTimeout");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                Thread.sleep(60_000);
+                yield(1); // test implementation
+            }
+        };
+        assertThrows(TimeoutException.class, ()-> iterator.hasNext(Duration.ofMillis(-1)));
+        assertNull(iterator.poll(-1, TimeUnit.MILLISECONDS));
+        assertTrue(iterator.close(Duration.ofSeconds(5)));
+    }
+
+    /**
+     * Exception of source is thrown to generator from yieldFrom(), generator can catch it
+     */
+    @Test
+    public void testYieldFromError() throws Exception {
+        System.out.println("testYieldFromError");
+        for (boolean catchIt:new boolean[] {false, true}) {
+            final Iterator<Integer> failing = new Iterator<Integer>() {
+                int i = 1;
+                @Override
+                public boolean hasNext() {
+                    return true;
+                }
+                @Override
+                public Integer next() {
+                    if (i==3) throw new IllegalStateException("bad source");
+                    return i++;
+                }
+            };
+            YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+                @Override
+                protected void generator() throws InterruptedException {
+                    yield(0); // test implementation
+                    try {
+                        yieldFrom(failing);
+                    } catch (IllegalStateException e) {
+                        if (!catchIt) throw e;
+                        yield(-1); // test implementation
+                    }
+                    yield(99); // test implementation
+                }
+            };
+            assertEquals((Integer)0, iterator.next());
+            assertEquals((Integer)1, iterator.next());
+            assertEquals((Integer)2, iterator.next());
+            if (catchIt) {
+                assertEquals((Integer)(-1), iterator.next());
+                assertEquals((Integer)99, iterator.next());
+            } else {
+                assertEquals("bad source", assertThrows(IllegalStateException.class, ()-> iterator.next()).getMessage());
+            }
+            assertFalse(iterator.hasNext());
+            assertTrue(iterator.close(Duration.ofSeconds(5)));
+        }
+    }
+
+    /**
+     * Timeout and deadline are used for wait nested generator
+     */
+    @Test
+    public void testYieldFromTimeout() throws Exception {
+        System.out.println("testYieldFromTimeout");
+        final YieldIterator<Integer> nested = new YieldIterator<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1); // test implementation
+                Thread.sleep(60_000);
+            }
+        };
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                yieldFrom(nested);
+            }
+        };
+        assertEquals((Integer)1, iterator.next());
+        long start = System.nanoTime();
+        assertThrows(TimeoutException.class, ()-> iterator.hasNext(Duration.ofMillis(50)));
+        assertNull(iterator.poll(50, TimeUnit.MILLISECONDS));
+        iterator.setDeadline(Duration.ofMillis(50));
+        RuntimeException e = assertThrows(RuntimeException.class, ()-> iterator.next());
+        assertTrue(e.getCause() instanceof TimeoutException);
+        assertTrue(System.nanoTime()-start<30_000_000_000L);
+        assertTrue(iterator.close(Duration.ofSeconds(5)));
+        assertTrue(nested.close(Duration.ofSeconds(5)));
+    }
+
+    /**
+     * Close stop nested generator
+     */
+    @Test
+    public void testYieldFromClose() throws Exception {
+        System.out.println("testYieldFromClose");
+        final YieldIterator<Integer> nested = new YieldIterator<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;;i++) yield(i); // test implementation
+            }
+        };
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                yieldFrom(nested);
+            }
+        };
+        assertEquals((Integer)0, iterator.next());
+        assertEquals((Integer)1, iterator.next());
+        assertTrue(iterator.close(Duration.ofSeconds(5)));
+        assertTrue(nested.close(Duration.ofSeconds(5)));
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Chunks by size, last chunk is not full
+     */
+    @Test
+    public void testChunked() throws Exception {
+        System.out.println("testChunked");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.LAZY) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<10;i++) yield(i); // test implementation
+            }
+        };
+        Iterator<List<Integer>> chunks = iterator.chunked(3, null);
+        assertThrows(IllegalStateException.class, ()-> iterator.chunked(3, null));
+        LinkedList<List<Integer>> actuals = new LinkedList();
+        while (chunks.hasNext()) actuals.add(chunks.next());
+        assertEquals(Arrays.asList(Arrays.asList(0,1,2), Arrays.asList(3,4,5), Arrays.asList(6,7,8), Arrays.asList(9)), actuals);
+        assertThrows(NoSuchElementException.class, ()-> chunks.next());
+    }
+
+    /**
+     * Not full chunk is taken after max wait
+     */
+    @Test
+    public void testChunkedMaxWait() throws Exception {
+        System.out.println("testChunkedMaxWait");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.LAZY) {
+            @Override
+            protected void generator() throws InterruptedException {
+                yield(1);
+                yield(2);
+                Thread.sleep(2000); // slow source
+                yield(3);
+            }
+        };
+        Iterator<List<Integer>> chunks = iterator.chunked(100, Duration.ofMillis(100));
+        long time1=System.nanoTime();
+        assertEquals(Arrays.asList(1,2), chunks.next());
+        long time2=System.nanoTime();
+        assertTrue("Wait "+(time2-time1), time2-time1 < 1_000_000_000L);
+        assertEquals(Arrays.asList(3), chunks.next());
+        assertFalse(chunks.hasNext());
+    }
+
+    /**
+     * Sliding and hopping windows
+     */
+    @Test
+    public void testWindowed() throws Exception {
+        System.out.println("testWindowed");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>(StartPolicy.LAZY) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<5;i++) yield(i); // test implementation
+            }
+        };
+        Iterator<List<Integer>> windows = iterator.windowed(3, 1);
+        LinkedList<List<Integer>> actuals = new LinkedList();
+        while (windows.hasNext()) actuals.add(windows.next());
+        assertEquals(Arrays.asList(Arrays.asList(0,1,2), Arrays.asList(1,2,3), Arrays.asList(2,3,4)), actuals);
+        YieldIteratorQueueImpl<Integer> iterator2 = new YieldIteratorQueueImpl<>(StartPolicy.LAZY) {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<9;i++) yield(i); // test implementation
+            }
+        };
+        windows = iterator2.windowed(2, 3);
+        actuals.clear();
+        while (windows.hasNext()) actuals.add(windows.next());
+        assertEquals(Arrays.asList(Arrays.asList(0,1), Arrays.asList(3,4), Arrays.asList(6,7)), actuals);
+    }
+
+    /**
+     * hasNext() take item to consumer slot: peek(), skip(), next() and close() see it
+     */
+    @Test
+    public void testHasNextSlot() throws Exception {
+        System.out.println("testHasNextSlot");
+        YieldIteratorQueueImpl<Integer> iterator = new YieldIteratorQueueImpl<>() {
+            @Override
+            protected void generator() throws InterruptedException {
+                for (int i=0;i<10;i++) yield(i); // test implementation
+            }
+        };
+        assertTrue(iterator.hasNext());
+        assertTrue(iterator.hasNext());
+        assertEquals((Integer)0, iterator.peek());
+        assertEquals((Integer)0, iterator.next());
+        assertTrue(iterator.hasNext());
+        iterator.skip(2); // item 1 in slot and item 2
+        assertEquals((Integer)3, iterator.poll(1, TimeUnit.SECONDS));
+        assertTrue(iterator.hasNext());
+        assertEquals((Integer)5, iterator.peek(1)); // item 4 is in slot, item 5 in queue
+        assertEquals((Integer)4, iterator.next());
+        assertTrue(iterator.hasNext());
+        iterator.close(); // drop item in slot
+        assertFalse(iterator.hasNext());
+        assertThrows(NoSuchElementException.class, ()-> iterator.next());
+    }
+
     // --- Multi-threading safe test ---
     //todo MT test
     